@@ -0,0 +1,89 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+
+/**
+ * Tells the UI when the countdown alarm starts and stops ringing, within
+ * this process, instead of broadcasting it through the system.  The
+ * current state is sticky: a listener which registers while the alarm
+ * is ringing hears about it straight away, so nothing has to go and
+ * check.  Only use this from the main thread.
+ *
+ * @author dpadgett
+ */
+public class AlarmEvents {
+
+    public interface Listener {
+        /** The alarm started ringing, or already was when this registered. */
+        void onAlarmRinging();
+
+        void onAlarmDismissed();
+    }
+
+    private static AlarmEvents instance;
+
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+    private boolean ringing;
+
+    private AlarmEvents(final Context context) {
+        // the alarm may have been ringing when the process was last killed
+        this.ringing = StatePersister.get(context).getSharedPreferences("TimerActivity")
+                .getBoolean("countdownDialogShowing", false);
+    }
+
+    public static AlarmEvents get(final Context context) {
+        if (instance == null) {
+            instance = new AlarmEvents(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public boolean isRinging() {
+        return ringing;
+    }
+
+    public void register(final Listener listener) {
+        listeners.add(listener);
+        if (ringing) {
+            listener.onAlarmRinging();
+        }
+    }
+
+    public void unregister(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Sets whether the alarm is ringing, telling every listener if that changed. */
+    public void setRinging(final boolean ringing) {
+        if (this.ringing == ringing) {
+            return;
+        }
+        this.ringing = ringing;
+        // a copy, so listeners can unregister themselves as they're told
+        for (final Listener listener : listeners.toArray(new Listener[listeners.size()])) {
+            if (ringing) {
+                listener.onAlarmRinging();
+            } else {
+                listener.onAlarmDismissed();
+            }
+        }
+    }
+}
@@ -16,12 +16,33 @@
 
 package org.dpadgett.timer;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.CursorIndexOutOfBoundsException;
 import android.database.sqlite.SQLiteException;
@@ -30,6 +51,7 @@ import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Handler;
 import android.provider.MediaStore;
+import android.provider.Settings;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
@@ -38,50 +60,131 @@ import android.widget.Spinner;
 
 /**
  * Utility class to provide alarm sound selection capabilities.  Caches
- * and auto-refreshes alarm list asynchronously.
+ * the alarm list, and refreshes it asynchronously whenever the media
+ * provider or the default alarm tone changes, rather than on a timer.
  *
  * @author dpadgett
  */
 public class AlarmSelector {
-	
-	private static final long DELAY_MULTIPLIER = 5;
+
+	// the media scanner sends a burst of changes, so wait for it to settle
+	private static final long SETTLE_MILLIS = 2000;
+
+	// shared by every selector, so catalogs are only ever fetched one at a time
+	private static final ExecutorService fetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "AlarmSelector");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// reading a tone's title means parsing the file, so the fallback does a few at once
+	private static final ExecutorService titleResolvers = Executors.newFixedThreadPool(
+			Math.min(4, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "AlarmSelector titles");
+					thread.setPriority(Thread.MIN_PRIORITY);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// titles of tone files, by path, size and modification time, so only changed files are parsed again
+	private static final Map<String, String> titleCache = new ConcurrentHashMap<String, String>();
+
+	/** The alarm tones, as three parallel lists, indexed by URI. */
+	private static class Catalog {
+		// some titles are still being worked out, so it isn't worth saving yet
+		private boolean partial;
+		private final List<String> names = new ArrayList<String>();
+		private final List<String> uris = new ArrayList<String>();
+		private final List<String> paths = new ArrayList<String>();
+		private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+		private Catalog copy() {
+			Catalog copy = new Catalog();
+			for (int idx = 0; idx < uris.size(); idx++) {
+				copy.add(names.get(idx), uris.get(idx), paths.get(idx));
+			}
+			return copy;
+		}
+
+		private void add(String name, String uri, String path) {
+			index.put(uri, uris.size());
+			names.add(name);
+			uris.add(uri);
+			paths.add(path);
+		}
+	}
+
+	/** A row of the media provider, before the rows are merged into title order. */
+	private static class Tone {
+		private final String titleKey;
+		private final String name;
+		private final String uri;
+		private final String path;
+
+		private Tone(String titleKey, String name, String uri, String path) {
+			this.titleKey = titleKey == null ? "" : titleKey;
+			this.name = name;
+			this.uri = uri;
+			this.path = path;
+		}
+	}
+
+	private static final int SNAPSHOT_MAGIC = 0x544f4e45; // "TONE"
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private static final String[] TONE_PROJECTION = {
+		MediaStore.Audio.Media._ID,
+		MediaStore.Audio.Media.TITLE,
+		MediaStore.Audio.Media.TITLE_KEY,
+		MediaStore.Audio.Media.DATA,
+	};
 
 	private final Spinner selector;
 	private final Context context;
-	private List<String> names;
-	private List<String> uris;
-	private List<String> paths;
+	// the adapter shows this list itself, so it is only ever changed in place
+	private final List<String> names;
+	private final List<String> uris;
+	private final List<String> paths;
+	// positions in the list by URI and by path, rebuilt whenever the list changes
+	private final Map<String, Integer> uriIndex = new HashMap<String, Integer>();
+	private final Map<String, Integer> pathIndex = new HashMap<String, Integer>();
+	private final File snapshotFile;
 	private ArrayAdapter<String> alarmTonesAdapter;
 	private final Handler handler;
 	private boolean destroyed = false;
 	private final Runnable reload = new Runnable() {
 		@Override
 		public void run() {
-			new Thread() {
+			// the chosen tone, or what the default alarm points at, may have changed
+			Uri alarmUri = AlarmService.getRingtoneUri(
+					StatePersister.get(context).getSharedPreferences("Countdown"));
+			if (alarmUri != null) {
+				ToneCache.get(context).warm(alarmUri);
+			}
+			fetcher.execute(new Runnable() {
 				@Override
 				public void run() {
-					long startTime = System.currentTimeMillis();
-					
-					List<String> oldNames = names;
-					fetchAlarms();
-					if (names != oldNames) {
-						handler.post(new Runnable() {
-							@Override
-							public void run() {
-								updateAlarms();
+					final Catalog catalog = fetchAlarms();
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (!destroyed) {
+								updateAlarms(catalog);
 							}
-						});
-					}
-					
-					long endTime = System.currentTimeMillis();
-					long elapsed = Math.max(1000, endTime - startTime);
-					if (!destroyed) {
-						handler.postDelayed(reload, DELAY_MULTIPLIER * elapsed);
-					}
+						}
+					});
 				}
-			}.start();
+			});
 		}
 	};
+	private final ContentObserver catalogObserver;
 
 	public AlarmSelector(Spinner selector) {
 		this.selector = selector;
@@ -89,9 +192,22 @@ public class AlarmSelector {
 		names = new ArrayList<String>();
 		uris = new ArrayList<String>();
 		paths = new ArrayList<String>();
-		init();
+		snapshotFile = new File(context.getFilesDir(), "Countdown.alarmSelector");
 		handler = new Handler();
-		handler.postDelayed(reload, DELAY_MULTIPLIER * 1000);
+		init();
+		catalogObserver = new ContentObserver(handler) {
+			@Override
+			public void onChange(boolean selfChange) {
+				handler.removeCallbacks(reload);
+				handler.postDelayed(reload, SETTLE_MILLIS);
+			}
+		};
+		ContentResolver resolver = context.getContentResolver();
+		resolver.registerContentObserver(MediaStore.Audio.Media.INTERNAL_CONTENT_URI, true, catalogObserver);
+		resolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, catalogObserver);
+		resolver.registerContentObserver(Settings.System.DEFAULT_ALARM_ALERT_URI, false, catalogObserver);
+		// catch up on anything that changed while nobody was watching
+		reload.run();
 	}
 
 	private void init() {
@@ -109,9 +225,11 @@ public class AlarmSelector {
 			public void onItemSelected(AdapterView<?> parent, View view,
 					int position, long id) {
 				SharedPreferences.Editor prefs = 
-						context.getSharedPreferences("Countdown", Context.MODE_PRIVATE).edit();
+						StatePersister.get(context).edit("Countdown");
 				prefs.putString("alarmUri", uris.get(position).toString());
 				prefs.commit();
+				// copy it somewhere quick to read before it has to go off
+				ToneCache.get(context).warm(Uri.parse(uris.get(position)));
 				// Log.i(getClass().getName(), "Saved uri " + paths.get(position));
 			}
 
@@ -120,167 +238,372 @@ public class AlarmSelector {
 			}
 		});
 	}
-	
-	private void updateAlarms() {
-		restoreState();
-		alarmTonesAdapter.clear();
-		alarmTonesAdapter.addAll(names);
+
+	/**
+	 * Brings the list up to date with a freshly fetched catalog, moving,
+	 * inserting and removing only the entries which changed.
+	 */
+	private void updateAlarms(Catalog catalog) {
+		if (catalog == null) {
+			return;
+		}
+		boolean changed = false;
+		for (int idx = uris.size() - 1; idx >= 0; idx--) {
+			if (!catalog.index.containsKey(uris.get(idx))) {
+				removeAlarm(idx);
+				changed = true;
+			}
+		}
+		for (int idx = 0; idx < catalog.uris.size(); idx++) {
+			String uri = catalog.uris.get(idx);
+			String name = catalog.names.get(idx);
+			String path = catalog.paths.get(idx);
+			int oldIdx = uris.indexOf(uri);
+			if (catalog.partial && oldIdx != -1) {
+				// a title we already have beats a stand in
+				name = names.get(oldIdx);
+			}
+			if (oldIdx == idx) {
+				if (!equal(names.get(idx), name) || !equal(paths.get(idx), path)) {
+					names.set(idx, name);
+					paths.set(idx, path);
+					changed = true;
+				}
+				continue;
+			}
+			if (oldIdx != -1) {
+				removeAlarm(oldIdx);
+			}
+			names.add(idx, name);
+			uris.add(idx, uri);
+			paths.add(idx, path);
+			changed = true;
+		}
+		while (uris.size() > catalog.uris.size()) {
+			removeAlarm(uris.size() - 1);
+			changed = true;
+		}
+		if (!changed) {
+			return;
+		}
+		reindex();
 		alarmTonesAdapter.notifyDataSetChanged();
+		if (!catalog.partial) {
+			saveCache(catalog);
+		}
+		restoreState();
+	}
+
+	/** Fills in a title which was worked out after the rest of the list. */
+	private void updateTitle(String uri, String title) {
+		Integer idx = uriIndex.get(uri);
+		if (idx != null && !equal(names.get(idx), title)) {
+			names.set(idx, title);
+			alarmTonesAdapter.notifyDataSetChanged();
+		}
+	}
+
+	private void removeAlarm(int idx) {
+		names.remove(idx);
+		uris.remove(idx);
+		paths.remove(idx);
 	}
 
+	private void reindex() {
+		uriIndex.clear();
+		pathIndex.clear();
+		// the first of any duplicates wins, as it would searching the list
+		for (int idx = uris.size() - 1; idx >= 0; idx--) {
+			uriIndex.put(uris.get(idx), idx);
+			pathIndex.put(paths.get(idx), idx);
+		}
+	}
+
+	private static boolean equal(String lhs, String rhs) {
+		return lhs == null ? rhs == null : lhs.equals(rhs);
+	}
+
+	/**
+	 * Loads the list as it was last fetched, from a snapshot file read in
+	 * one go.  A missing, old or damaged snapshot just leaves the list
+	 * empty until the first fetch is done.
+	 */
 	private void reloadCache() {
-		SharedPreferences prefs =
-				context.getSharedPreferences("Countdown_alarmSelector", Context.MODE_PRIVATE);
-		if (!prefs.contains("paths_0")) {
+		if (!snapshotFile.exists()) {
 			// Log.i(getClass().getName(), "Cache miss...");
-			fetchAlarms();
+			// drop the list the way older versions kept it, in preferences
+			StatePersister.get(context).edit("Countdown_alarmSelector").clear().commit();
 			return;
 		}
 		
-		List<String> newPaths = new ArrayList<String>();
-		List<String> newNames = new ArrayList<String>();
-		List<String> newUris = new ArrayList<String>();
-		
-		{
-			String keyPrefix = "paths_";
-			for (int i = 0; prefs.contains(keyPrefix + i); i++) {
-				newPaths.add(prefs.getString(keyPrefix + i, null));
+		DataInputStream in = null;
+		try {
+			byte[] bytes = new byte[(int) snapshotFile.length()];
+			in = new DataInputStream(new FileInputStream(snapshotFile));
+			in.readFully(bytes);
+			in.close();
+			in = new DataInputStream(new ByteArrayInputStream(bytes));
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				return;
+			}
+			int count = in.readInt();
+			// every tone takes at least a byte for each of its three strings
+			if (count < 0 || count > in.available() / 3) {
+				return;
+			}
+			List<String> newNames = new ArrayList<String>(count);
+			List<String> newUris = new ArrayList<String>(count);
+			List<String> newPaths = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				newNames.add(readString(in));
+				newUris.add(readString(in));
+				newPaths.add(readString(in));
 			}
+			names.addAll(newNames);
+			uris.addAll(newUris);
+			paths.addAll(newPaths);
+			reindex();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			Closeables.closeQuietly(in);
 		}
 
-		{
-			String keyPrefix = "names_";
-			for (int i = 0; prefs.contains(keyPrefix + i); i++) {
-				newNames.add(prefs.getString(keyPrefix + i, null));
+		// Log.i(getClass().getName(), "Cache hit!");
+	}
+
+	/** Reads the alarm tones off the media provider; this is slow, so keep it off the main thread. */
+	private Catalog fetchAlarms() {
+		List<Tone> tones = new ArrayList<Tone>();
+		// one pass over each provider gets everything we need to know about every tone
+		boolean internal = queryAlarms(MediaStore.Audio.Media.INTERNAL_CONTENT_URI, tones);
+		boolean external = queryAlarms(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, tones);
+		if (!internal && !external) {
+			return fetchSystemAlarms();
+		}
+		// the same order RingtoneManager would list them in
+		Collections.sort(tones, new Comparator<Tone>() {
+			@Override
+			public int compare(Tone lhs, Tone rhs) {
+				return lhs.titleKey.compareTo(rhs.titleKey);
 			}
+		});
+
+		Map<String, String> pathsByUri = new HashMap<String, String>();
+		for (Tone tone : tones) {
+			pathsByUri.put(tone.uri, tone.path);
 		}
 
-		{
-			String keyPrefix = "uris_";
-			for (int i = 0; prefs.contains(keyPrefix + i); i++) {
-				newUris.add(prefs.getString(keyPrefix + i, null));
+		Catalog catalog = new Catalog();
+		// explicitly add the default URI, so we can select it separately from the other tones
+		Uri defaultUri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
+		Ringtone ringtone = RingtoneManager.getRingtone(context, defaultUri);
+		if (ringtone != null) {
+			Uri actualUri = RingtoneManager.getActualDefaultRingtoneUri(context, RingtoneManager.TYPE_ALARM);
+			String path = actualUri == null ? null : pathsByUri.get(actualUri.toString());
+			if (path == null) {
+				path = actualUri == null ? "unknown" : getRealPathFromURI(actualUri);
 			}
+			catalog.add(ringtone.getTitle(context), defaultUri.toString(), path);
 		}
-		
-		if (!names.equals(newNames) || !uris.equals(newUris) || !paths.equals(newPaths)) {
-			names = newNames;
-			uris = newUris;
-			paths = newPaths;
+		for (Tone tone : tones) {
+			if (!catalog.index.containsKey(tone.uri)) {
+				catalog.add(tone.name, tone.uri, tone.path);
+			}
 		}
-
-		// Log.i(getClass().getName(), "Cache hit!");
+		return catalog;
 	}
 
-	private void fetchAlarms() {
-		RingtoneManager manager = new RingtoneManager(context);
-		manager.setType(RingtoneManager.TYPE_ALARM);
+	/**
+	 * Adds every alarm tone in the given provider to the list, returning
+	 * false if the provider couldn't be read at all.
+	 */
+	private boolean queryAlarms(Uri provider, List<Tone> tones) {
+		Cursor c;
+		try {
+			c = context.getContentResolver().query(provider, TONE_PROJECTION,
+					MediaStore.Audio.Media.IS_ALARM + " = 1", null, null);
+		} catch (SecurityException e) {
+			// this happens on newer phones with read from SD card disabled
+			return false;
+		}
+		if (c == null) {
+			return false;
+		}
 		try {
-			Cursor c = manager.getCursor();
-			if (c == null) {
-				return;
-			}
-			
-			List<String> newPaths = new ArrayList<String>();
-			List<String> newNames = new ArrayList<String>();
-			List<String> newUris = new ArrayList<String>();
-			
-			// explicitly add the default URI, so we can select it separately from the other tones
-			Uri defaultUri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
-			Ringtone ringtone = RingtoneManager.getRingtone(context, defaultUri);
-			newNames.add(ringtone.getTitle(context));
-			newUris.add(defaultUri.toString());
-			newPaths.add(getRealPathFromURI(defaultUri));
-			
 			for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
-				newNames.add(c.getString(RingtoneManager.TITLE_COLUMN_INDEX));
-				newUris.add(manager.getRingtoneUri(c.getPosition()).toString());
-				System.out.println("uri: " + newUris.get(newUris.size() - 1));
-				newPaths.add(getRealPathFromURI(manager.getRingtoneUri(c.getPosition())));
-				// System.out.println("path: " + newPaths.get(newPaths.size() - 1));
+				String uri = ContentUris.withAppendedId(provider, c.getLong(0)).toString();
+				String path = c.getString(3);
+				tones.add(new Tone(c.getString(2), c.getString(1), uri, path == null ? "unknown" : path));
 			}
+		} finally {
 			c.close();
-			
-			if (!names.equals(newNames) || !uris.equals(newUris) || !paths.equals(newPaths)) {
-				names = newNames;
-				uris = newUris;
-				paths = newPaths;
+		}
+		return true;
+	}
+
+	/**
+	 * Lists the tones which ship with the system, for when the media
+	 * provider won't let us look.  We can still fallback to the system
+	 * default, which the user can change outside of the app.  Titles which
+	 * aren't cached yet are resolved in parallel; the list shows up
+	 * straight away with file names, and each title replaces its file name
+	 * as it arrives.
+	 */
+	private Catalog fetchSystemAlarms() {
+		String dirName = "/system/media/audio/alarms/";
+		File dir = new File(dirName);
+		File[] contents = dir.listFiles();
+		//System.out.println("Found files " + Arrays.toString(contents));
+		Catalog catalog = new Catalog();
+		
+		List<Uri> potentialUris = new ArrayList<Uri>();
+		potentialUris.add(RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM));
+		if (contents != null) {
+			for (File file : contents) {
+				potentialUris.add(Uri.fromFile(file));
 			}
-	
-			saveCache();
-		} catch (SecurityException e) {
-			String dirName = "/system/media/audio/alarms/";
-			File dir = new File(dirName);
-			File[] contents = dir.listFiles();
-			//System.out.println("Found files " + Arrays.toString(contents));
-			// this happens on newer phones with read from SD card disabled.  we can still fallback
-			// to the system default, which the user can change outside of the app
-			List<String> newPaths = new ArrayList<String>();
-			List<String> newNames = new ArrayList<String>();
-			List<String> newUris = new ArrayList<String>();
-			
-			List<Uri> potentialUris = new ArrayList<Uri>();
-			potentialUris.add(RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM));
-			if (contents != null) {
-				for (File file : contents) {
-					potentialUris.add(Uri.fromFile(file));
+		}
+		List<String> keys = new ArrayList<String>();
+		List<Integer> unresolved = new ArrayList<Integer>();
+		for (Uri uri : potentialUris) {
+			String path = getRealPathFromURI(uri);
+			File file = new File(path);
+			String key = file.isFile() ? path + '@' + file.length() + '@' + file.lastModified() : null;
+			String title = key == null ? null : titleCache.get(key);
+			if (title == null) {
+				unresolved.add(catalog.uris.size());
+				// stand in until the real title turns up
+				title = file.getName();
+				int dot = title.lastIndexOf('.');
+				if (dot > 0) {
+					title = title.substring(0, dot);
 				}
 			}
-			for (Uri uri : potentialUris) {
-				try {
-					Ringtone ringtone = RingtoneManager.getRingtone(context, uri);
-					String title = ringtone.getTitle(context);
-					if (title.endsWith(".ogg")) {
-						title = title.substring(0, title.length() - 4);
-					}
-					newNames.add(title);
-					newUris.add(uri.toString());
-					newPaths.add(getRealPathFromURI(uri));
-				} catch (Exception ex) {
-					ex.printStackTrace();
+			keys.add(key);
+			catalog.add(title, uri.toString(), path);
+		}
+		if (unresolved.isEmpty()) {
+			return catalog;
+		}
+
+		// show what we have now; the titles are posted after it, so they land on top of it
+		final Catalog shown = catalog.copy();
+		shown.partial = true;
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (!destroyed) {
+					updateAlarms(shown);
 				}
 			}
-			
-			if (!names.equals(newNames) || !uris.equals(newUris) || !paths.equals(newPaths)) {
-				names = newNames;
-				uris = newUris;
-				paths = newPaths;
+		});
+		List<Future<String>> titles = new ArrayList<Future<String>>(unresolved.size());
+		for (int idx : unresolved) {
+			final Uri uri = potentialUris.get(idx);
+			final String key = keys.get(idx);
+			titles.add(titleResolvers.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					final String title = resolveTitle(uri);
+					if (title != null) {
+						if (key != null) {
+							titleCache.put(key, title);
+						}
+						handler.post(new Runnable() {
+							@Override
+							public void run() {
+								if (!destroyed) {
+									updateTitle(uri.toString(), title);
+								}
+							}
+						});
+					}
+					return title;
+				}
+			}));
+		}
+		for (int i = 0; i < titles.size(); i++) {
+			try {
+				String title = titles.get(i).get();
+				if (title != null) {
+					catalog.names.set(unresolved.get(i), title);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
 			}
-			saveCache();
 		}
+		return catalog;
 	}
 
-	private void saveCache() {
-		SharedPreferences.Editor prefs =
-				context.getSharedPreferences("Countdown_alarmSelector", Context.MODE_PRIVATE).edit();
-
-		prefs.clear();
-
-		{
-			String keyPrefix = "paths_";
-			for (int i = 0; i < paths.size(); i++) {
-				prefs.putString(keyPrefix + i, paths.get(i));
+	/** Parses the title out of the given tone, or returns null if it can't be read. */
+	private String resolveTitle(Uri uri) {
+		try {
+			Ringtone ringtone = RingtoneManager.getRingtone(context, uri);
+			if (ringtone == null) {
+				return null;
 			}
+			String title = ringtone.getTitle(context);
+			if (title != null && title.endsWith(".ogg")) {
+				title = title.substring(0, title.length() - 4);
+			}
+			return title;
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return null;
 		}
+	}
 
-		{
-			String keyPrefix = "names_";
-			for (int i = 0; i < names.size(); i++) {
-				prefs.putString(keyPrefix + i, names.get(i));
+	/** Writes the given catalog out as the new snapshot, on the state writer's thread. */
+	private void saveCache(final Catalog catalog) {
+		StatePersister.get(context).execute(new Runnable() {
+			@Override
+			public void run() {
+				writeSnapshot(catalog);
 			}
-		}
+		});
+	}
 
-		{
-			String keyPrefix = "uris_";
-			for (int i = 0; i < uris.size(); i++) {
-				prefs.putString(keyPrefix + i, uris.get(i));
+	/** Replaces the snapshot in one rename, so it is never seen half written. */
+	private void writeSnapshot(Catalog catalog) {
+		File temp = new File(snapshotFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 8192));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(catalog.uris.size());
+			for (int i = 0; i < catalog.uris.size(); i++) {
+				writeString(out, catalog.names.get(i));
+				writeString(out, catalog.uris.get(i));
+				writeString(out, catalog.paths.get(i));
 			}
+			out.close();
+			out = null;
+			temp.renameTo(snapshotFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			Closeables.closeQuietly(out);
 		}
-		
-		prefs.commit();
 
 		// Log.i(getClass().getName(), "Cache updated");
 	}
 
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
 	private String getRealPathFromURI(Uri contentUri) {
         String toReturn = "unknown";
         String uri = contentUri.toString();
@@ -313,7 +636,7 @@ public class AlarmSelector {
 
 	public void restoreState() {
         SharedPreferences prefs =
-				context.getSharedPreferences("Countdown", Context.MODE_PRIVATE);
+				StatePersister.get(context).getSharedPreferences("Countdown");
 
         Uri alarmUri = AlarmService.getRingtoneUri(prefs);
         // needed for backward compatability with original version which just stored the path
@@ -323,12 +646,12 @@ public class AlarmSelector {
         	if (alarmStr.startsWith("file:///")) {
         		alarmStr = alarmStr.substring("file://".length());
         	}
-        	int idx = paths.indexOf(alarmStr);
-        	if (idx != -1) {
+        	Integer idx = pathIndex.get(alarmStr);
+        	if (idx != null) {
         		//Log.i(getClass().getName(), "Replacing URI " + alarmStr + " with " + uris.get(idx));
         		alarmUri = Uri.parse(uris.get(idx));
         		SharedPreferences.Editor prefsEdit = 
-					context.getSharedPreferences("Countdown", Context.MODE_PRIVATE).edit();
+					StatePersister.get(context).edit("Countdown");
 				prefsEdit.putString("alarmUri", uris.get(idx));
 				prefsEdit.commit();
         	} else {
@@ -340,8 +663,8 @@ public class AlarmSelector {
         	}
         }
      // Log.i(getClass().getName(), "alarmUri path is " + getRealPathFromURI(alarmUri));
-		int idx = uris.indexOf(alarmUri.toString());
-		if (idx != -1) {
+		Integer idx = uriIndex.get(alarmUri.toString());
+		if (idx != null) {
 			selector.setSelection(idx);
 		} else {
 			Ringtone ringtone = RingtoneManager.getRingtone(context, alarmUri);
@@ -350,7 +673,7 @@ public class AlarmSelector {
 				int sel = selector.getSelectedItemPosition();
 				if (sel != Spinner.INVALID_POSITION) {
 					SharedPreferences.Editor prefsEdit = 
-							context.getSharedPreferences("Countdown", Context.MODE_PRIVATE).edit();
+							StatePersister.get(context).edit("Countdown");
 					prefsEdit.putString("alarmUri", uris.get(sel));
 					prefsEdit.commit();
 					// Log.i(getClass().getName(), "Saved default uri " + paths.get(sel).toString());
@@ -359,10 +682,11 @@ public class AlarmSelector {
 				}
 			} else {
 				// Log.i(getClass().getName(), "ringtone path: " + ringtone + " vs " + Settings.System.DEFAULT_ALARM_ALERT_URI.getPath());
-				alarmTonesAdapter.add(
-						ringtone.getTitle(context));
+				names.add(ringtone.getTitle(context));
+				alarmTonesAdapter.notifyDataSetChanged();
 				uris.add(alarmUri.toString());
 				paths.add(getRealPathFromURI(alarmUri));
+				reindex();
 				selector.setSelection(uris.size() - 1);
 			}
 		}
@@ -371,5 +695,6 @@ public class AlarmSelector {
 	public void destroy() {
 		destroyed  = true;
 		handler.removeCallbacks(reload);
+		context.getContentResolver().unregisterContentObserver(catalogObserver);
 	}
 }
@@ -16,6 +16,10 @@
 
 package org.dpadgett.timer;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
 import android.R.drawable;
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -26,29 +30,112 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.media.Ringtone;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 
 /**
  * Service which controls playback of a single alarm, initiated by an
- * {@link Intent}.
+ * {@link Intent}.  Commands are handled one at a time on a worker thread
+ * of the service's own, against an explicit state:
+ *
+ * IDLE, with nothing prepared; ARMED, with the ringtone prepared because
+ * the countdown is about to end; RINGING; and DISMISSED.  Every
+ * transition checks the state first, so a duplicated or late command is
+ * simply ignored, and only entering or leaving RINGING is written out.
+ * The main thread only ever posts and cancels the notification and tells
+ * the activity.
  * 
  * @author dpadgett
  */
 public class AlarmService extends Service {
 
-    private MediaPlayer alarmPlayer;
+    /** Dismisses the alarm if it is ringing. */
+    static final String ACTION_DISMISS = "org.dpadgett.timer.DISMISS_ALARM";
+
+    // how long a ringtone prepared ahead of the countdown is kept, in case the countdown was cancelled
+    private static final long PREWARM_TIMEOUT_MILLIS = 60000L;
+
+    private enum State {
+        IDLE,
+        ARMED,
+        RINGING,
+        DISMISSED
+    }
+
+    private final Handler mainHandler = new Handler();
+    private HandlerThread workerThread;
+    private Handler worker;
     private Context context;
 
-    private void initRingtone() {
-        final Uri alarmUri = getRingtoneUri(context.getSharedPreferences("Countdown", MODE_PRIVATE));
+    // everything below is only touched on the worker
+    private State state;
+    private MediaPlayer alarmPlayer;
+    // the latest command handled, so stopping doesn't drop one sent since
+    private int lastStartId;
+
+    private final Runnable releasePrewarmed = new Runnable() {
+        @Override
+        public void run() {
+            if (state == State.ARMED) {
+                releasePlayer();
+                state = State.IDLE;
+                stopSelf(lastStartId);
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        context = getApplicationContext();
+        workerThread = new HandlerThread("AlarmService");
+        workerThread.start();
+        worker = new Handler(workerThread.getLooper());
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                // we may have been killed and restarted mid-alarm
+                state = StatePersister.get(context).getSharedPreferences("TimerActivity")
+                        .getBoolean("countdownDialogShowing", false) ? State.RINGING : State.IDLE;
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                releasePlayer();
+                workerThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Creates and prepares the alarm's player.  Ahead of time it can check
+     * for a local copy of the tone; as the alarm goes off, that check would
+     * only hold it up, so the tone is played from its source.
+     */
+    private void initRingtone(final boolean aheadOfTime) {
+        final Uri alarmUri = getRingtoneUri(StatePersister.get(context).getSharedPreferences("Countdown"));
         if (alarmUri != null) {
             alarmPlayer = new MediaPlayer();
             alarmPlayer.setAudioStreamType(AudioManager.STREAM_ALARM);
             try {
-                alarmPlayer.setDataSource(context, alarmUri);
+                final ToneCache toneCache = ToneCache.get(context);
+                final File cached = aheadOfTime ? toneCache.lookup(alarmUri) : null;
+                if (cached == null || !setCachedSource(cached)) {
+                    alarmPlayer.setDataSource(context, alarmUri);
+                    // so next time it's local
+                    toneCache.warm(alarmUri);
+                }
                 alarmPlayer.setLooping(true);
                 alarmPlayer.prepare();
             } catch (final Exception e) {
@@ -59,6 +146,31 @@ public class AlarmService extends Service {
         }
     }
 
+    /** Points the player at the given copy of the tone, and returns whether that worked. */
+    private boolean setCachedSource(final File cached) {
+        try {
+            final FileInputStream in = new FileInputStream(cached);
+            try {
+                alarmPlayer.setDataSource(in.getFD());
+            } finally {
+                in.close();
+            }
+            return true;
+        } catch (final IOException e) {
+            // evicted since it was looked up, most likely
+            alarmPlayer.reset();
+            alarmPlayer.setAudioStreamType(AudioManager.STREAM_ALARM);
+            return false;
+        }
+    }
+
+    private void releasePlayer() {
+        if (alarmPlayer != null) {
+            alarmPlayer.release();
+            alarmPlayer = null;
+        }
+    }
+
     static Uri getRingtoneUri(final SharedPreferences prefs) {
         final String alarmUriString = prefs.getString("alarmUri", null);
         Uri alarmUri = null;
@@ -82,93 +194,201 @@ public class AlarmService extends Service {
         return alarmUri;
     }
 
-    public void dismissNotification() {
+    private void playIntervalTone() {
+        // just a short blip, unlike the countdown there's nothing to dismiss
+        final Uri toneUri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
+        final Ringtone tone = toneUri == null ? null : RingtoneManager.getRingtone(context, toneUri);
+        if (tone != null) {
+            tone.setStreamType(AudioManager.STREAM_ALARM);
+            tone.play();
+        }
+    }
+
+    /**
+     * Gets the ringtone ready shortly before the countdown ends, so opening
+     * and preparing it is out of the way by the time it has to sound.
+     */
+    private void arm() {
+        if (state == State.RINGING) {
+            return;
+        }
+        if (alarmPlayer == null) {
+            initRingtone(true);
+        }
+        state = State.ARMED;
+        worker.removeCallbacks(releasePrewarmed);
+        worker.postDelayed(releasePrewarmed, PREWARM_TIMEOUT_MILLIS);
+    }
+
+    /** Starts the ringtone and tells the user, unless it's already ringing. */
+    private void ring(final long wokeAt) {
+        if (state == State.RINGING) {
+            // Log.i(getClass().getName(), "Ignoring start alarm, already ringing");
+            return;
+        }
+        worker.removeCallbacks(releasePrewarmed);
+        if (alarmPlayer == null) {
+            // nothing was prepared ahead of time, so this is the slow path
+            initRingtone(false);
+        }
+        startRinging(wokeAt);
+        setDialogShowing(true);
+        // everything up to the alarm going off should survive whatever happens next
+        StatePersister.get(context).flush();
+    }
+
+    private void startRinging(final long wokeAt) {
         if (alarmPlayer != null) {
-            alarmPlayer.stop();
-            alarmPlayer.release();
-            alarmPlayer = null;
-            // Log.i(getClass().getName(), "Stopped ringtone");
+            alarmPlayer.start();
+            LatencyHistogram.get(context, LatencyHistogram.SOUND_LATENCY)
+                    .record(TimeSources.get().elapsedRealtimeNanos() - wokeAt);
+        }
+        state = State.RINGING;
+        mainHandler.post(showAlarm);
+    }
+
+    /** Stops the ringtone and clears the notification and dialog, if it is ringing. */
+    private void dismiss() {
+        if (state == State.RINGING || state == State.ARMED) {
+            worker.removeCallbacks(releasePrewarmed);
+            if (alarmPlayer != null) {
+                alarmPlayer.stop();
+            }
+            releasePlayer();
+            if (state == State.RINGING) {
+                mainHandler.post(dismissAlarm);
+            }
+            state = State.DISMISSED;
+            setDialogShowing(false);
         } else {
             // Log.i(getClass().getName(), "Alarm not ringing!");
         }
-        final NotificationManager manager = (NotificationManager) context
-                .getSystemService(Context.NOTIFICATION_SERVICE);
-        manager.cancel(R.id.countdownNotification);
+        stopSelf(lastStartId);
     }
 
-    private void countdownFinished() {
-        // creates the notification, notification dialog, and starts the ringtone
-        if (alarmPlayer != null) {
-            alarmPlayer.start();
+    private void setDialogShowing(final boolean showing) {
+        final StatePersister persister = StatePersister.get(context);
+        if (persister.getSharedPreferences("TimerActivity").getBoolean("countdownDialogShowing", false) != showing) {
+            final SharedPreferences.Editor prefs = persister.edit("TimerActivity");
+            prefs.putBoolean("countdownDialogShowing", showing);
+            prefs.commit();
         }
+    }
 
-        final NotificationManager mNotificationManager = (NotificationManager) context
-                .getSystemService(Context.NOTIFICATION_SERVICE);
-        final int icon = drawable.ic_dialog_info;
-        final String tickerText = context.getString(R.string.countdown_timer_finished);
-        final long when = System.currentTimeMillis();
+    private final Runnable showAlarm = new Runnable() {
+        @Override
+        public void run() {
+            // creates the notification and notification dialog
+            final NotificationManager mNotificationManager = (NotificationManager) context
+                    .getSystemService(Context.NOTIFICATION_SERVICE);
+            final int icon = drawable.ic_dialog_info;
+            final String tickerText = context.getString(R.string.countdown_timer_finished);
+            final long when = System.currentTimeMillis();
 
-        final Notification notification = new Notification(icon, tickerText, when);
-        notification.flags |= Notification.FLAG_AUTO_CANCEL | Notification.FLAG_ONGOING_EVENT;
+            final Notification notification = new Notification(icon, tickerText, when);
+            notification.flags |= Notification.FLAG_AUTO_CANCEL | Notification.FLAG_ONGOING_EVENT;
 
-        final String contentTitle = context.getString(R.string.countdown_timer_finished);
-        final String contentText = context.getString(R.string.tap_to_dismiss);
-        final Intent notificationIntent = new Intent(context, AlarmService.class).putExtra("startAlarm", false)
-                .putExtra("fromFragment", false).setAction("internalStopAlarm");
-        final PendingIntent contentIntent = PendingIntent.getService(context, 0, notificationIntent,
-                PendingIntent.FLAG_ONE_SHOT);
+            final String contentTitle = context.getString(R.string.countdown_timer_finished);
+            final String contentText = context.getString(R.string.tap_to_dismiss);
+            final Intent notificationIntent = new Intent(context, AlarmService.class).setAction(ACTION_DISMISS);
+            final PendingIntent contentIntent = PendingIntent.getService(context, 0, notificationIntent,
+                    PendingIntent.FLAG_ONE_SHOT);
 
-        notification.setLatestEventInfo(context, contentTitle, contentText, contentIntent);
-        mNotificationManager.notify(R.id.countdownNotification, notification);
+            notification.setLatestEventInfo(context, contentTitle, contentText, contentIntent);
+            mNotificationManager.notify(R.id.countdownNotification, notification);
 
-        // Log.i(getClass().getName(), "Started ringtone");
+            AlarmEvents.get(context).setRinging(true);
+        }
+    };
 
-        final Intent showDialog = new Intent(TimerActivity.ACTION_SHOW_DIALOG);
-        context.sendBroadcast(showDialog);
-        // Log.i(getClass().getName(), "Sent request to show dialog");
-    }
+    private final Runnable dismissAlarm = new Runnable() {
+        @Override
+        public void run() {
+            final NotificationManager manager = (NotificationManager) context
+                    .getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.cancel(R.id.countdownNotification);
+            AlarmEvents.get(context).setRinging(false);
+        }
+    };
 
     // This is the old onStart method that will be called on the pre-2.0
     // platform.  On 2.0 or later we override onStartCommand() so this
     // method will not be called.
     @Override
     public void onStart(final Intent intent, final int startId) {
-        context = getApplicationContext();
-        handleCommand(intent);
+        postCommand(intent, startId);
     }
 
     @Override
     public int onStartCommand(final Intent intent, final int flags, final int startId) {
-        context = getApplicationContext();
-        handleCommand(intent);
+        postCommand(intent, startId);
         // We want this service to continue running until it is explicitly
         // stopped, so return sticky.
         return START_STICKY;
     }
 
-    private void handleCommand(final Intent intent) {
-        final SharedPreferences prefs = getSharedPreferences("TimerActivity", Context.MODE_PRIVATE);
-        final SharedPreferences.Editor prefsEditor = prefs.edit();
-        if (intent.getBooleanExtra("startAlarm", false)) {
-            if (!prefs.getBoolean("countdownDialogShowing", false)) {
-                initRingtone();
-                countdownFinished();
-                prefsEditor.putBoolean("countdownDialogShowing", true);
-                prefsEditor.commit();
-                // Log.i(getClass().getName(), "Starting alarm: " + intent + "; " + intent.getExtras());
+    private void postCommand(final Intent intent, final int startId) {
+        final long wokeAt = TimeSources.get().elapsedRealtimeNanos();
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                lastStartId = startId;
+                handleCommand(intent, wokeAt);
+            }
+        });
+    }
+
+    private void handleCommand(final Intent intent, final long wokeAt) {
+        if (intent == null) {
+            // restarted after being killed; if we were ringing, carry on
+            if (state == State.RINGING) {
+                initRingtone(false);
+                startRinging(wokeAt);
             } else {
-                // Log.i(getClass().getName(), "Ignoring start alarm intent: " + intent + "; dialog already shown: " + intent.getExtras());
+                stopSelf(lastStartId);
             }
+        } else if (DeadlineScheduler.ACTION_DEADLINES_DUE.equals(intent.getAction())) {
+            onDeadlinesDue(wokeAt);
         } else {
-            dismissNotification();
-            if (!intent.getBooleanExtra("fromFragment", true)) {
-                final Intent dismiss = new Intent(TimerActivity.ACTION_DISMISS_DIALOG);
-                context.sendBroadcast(dismiss);
-                // Log.i(getClass().getName(), "Sent request to dismiss dialog");
+            dismiss();
+        }
+    }
+
+    private void onDeadlinesDue(final long wokeAt) {
+        // the interval timer has to have its handle before the expired ones are taken
+        final IntervalTimer intervals = IntervalTimer.get(context);
+        final SharedPreferences countdownPrefs = StatePersister.get(context).getSharedPreferences("Countdown");
+        final int deadlineId = countdownPrefs.getInt("deadlineId", -1);
+        final int prewarmId = countdownPrefs.getInt("prewarmId", -1);
+        final DeadlineScheduler scheduler = DeadlineScheduler.get(context);
+        // only the countdown's own end counts towards how late alarms go off
+        final long countdownDeadline = scheduler.isScheduled(deadlineId) ? scheduler.getDeadline(deadlineId) : -1;
+        boolean countdownDue = false;
+        boolean intervalDue = false;
+        boolean prewarmDue = false;
+        for (final int handle : scheduler.takeExpired()) {
+            if (intervals.onDeadlineExpired(handle)) {
+                intervalDue = true;
+            } else if (handle == prewarmId) {
+                prewarmDue = true;
+            } else {
+                countdownDue = true;
+                if (handle == deadlineId && countdownDeadline != -1) {
+                    LatencyHistogram.get(context, LatencyHistogram.ALARM_LATENCY).record(wokeAt - countdownDeadline);
+                }
             }
-            prefsEditor.putBoolean("countdownDialogShowing", false);
-            prefsEditor.commit();
-            context.stopService(new Intent(context, getClass()));
+        }
+        if (intervalDue) {
+            playIntervalTone();
+        }
+        if (countdownDue) {
+            ring(wokeAt);
+        } else if (prewarmDue) {
+            arm();
+        } else if (state != State.RINGING && state != State.ARMED) {
+            // woke up for an interval boundary, or for a deadline which has since
+            // moved or been cancelled; the scheduler has already armed itself for the next one
+            stopSelf(lastStartId);
         }
     }
 
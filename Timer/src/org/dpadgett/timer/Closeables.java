@@ -0,0 +1,40 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Helpers for the streams and files the state writers open.
+ *
+ * @author dpadgett
+ */
+final class Closeables {
+    private Closeables() { }
+
+    /** Closes the given stream or file, if any, for when there's nothing to be done if that fails. */
+    static void closeQuietly(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException e) {
+                // nothing more we can do
+            }
+        }
+    }
+}
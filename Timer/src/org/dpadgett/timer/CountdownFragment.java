@@ -20,16 +20,12 @@ import org.dpadgett.widget.CountdownTextView;
 import org.dpadgett.widget.FasterNumberPicker;
 import org.dpadgett.widget.FasterNumberPicker.OnValueChangeListener;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -48,6 +44,9 @@ import android.widget.Spinner;
  */
 public class CountdownFragment extends Fragment {
 
+    // how long before the end the countdown shows tenths, if the user asked for them
+    private static final long PRECISE_FINISH_NANOS = 10 * 1000000000L;
+
     private boolean inputMode;
     private LinearLayout inputLayout;
     private LinearLayout timerLayout;
@@ -57,8 +56,6 @@ public class CountdownFragment extends Fragment {
     private FasterNumberPicker countdownMinutes;
     private FasterNumberPicker countdownSeconds;
     private CountdownState timingState;
-
-    public PendingIntent alarmPendingIntent;
     private AlarmSelector alarmSelector;
 
     public CountdownFragment() {
@@ -87,8 +84,7 @@ public class CountdownFragment extends Fragment {
         final FasterNumberPicker.OnValueChangeListener saveTimestampListener = new OnValueChangeListener() {
             @Override
             public void onValueChange(final FasterNumberPicker picker, final int oldVal, final int newVal) {
-                final SharedPreferences.Editor prefs = getContext().getSharedPreferences("Countdown",
-                        Context.MODE_PRIVATE).edit();
+                final SharedPreferences.Editor prefs = StatePersister.get(getContext()).edit("Countdown");
                 prefs.putLong("countdownInputs", getInputTimestamp());
                 prefs.commit();
             }
@@ -134,6 +130,7 @@ public class CountdownFragment extends Fragment {
         this.alarmSelector = new AlarmSelector((Spinner) rootView.findViewById(R.id.alarm_tones));
 
         this.timerLayout = (LinearLayout) inflater.inflate(R.layout.countdown_timer, container, false);
+        ((CountdownTextView) timerLayout.findViewById(R.id.countdownTimer)).setUserVisible(getUserVisibleHint());
 
         startButton.setOnClickListener(new OnClickListener() {
             @Override
@@ -147,6 +144,7 @@ public class CountdownFragment extends Fragment {
         });
 
         restoreState();
+        AlarmEvents.get(getContext()).register(alarmListener);
 
         // forcefully pre-render content so it is cached
         rootView.measure(MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED),
@@ -164,9 +162,11 @@ public class CountdownFragment extends Fragment {
     }
 
     private void restoreState() {
-        final SharedPreferences prefs = getContext().getSharedPreferences("Countdown", Context.MODE_PRIVATE);
+        final SharedPreferences prefs = StatePersister.get(getContext()).getSharedPreferences("Countdown");
 
-        timingState = new CountdownState((CountdownTextView) timerLayout.findViewById(R.id.countdownTimer), prefs);
+        timingState = new CountdownState((CountdownTextView) timerLayout.findViewById(R.id.countdownTimer),
+                DeadlineScheduler.get(getContext()), prefs);
+        setPreciseFinish(prefs.getBoolean("preciseFinish", false));
 
         if (prefs.contains("countdownInputs")) {
             long countdownInputs = prefs.getLong("countdownInputs", 0L);
@@ -206,6 +206,26 @@ public class CountdownFragment extends Fragment {
         }
     }
 
+    /**
+     * Sets whether the last seconds of the countdown show tenths of a
+     * second, which costs ten redraws a second instead of one.
+     */
+    public void setPreciseFinish(final boolean preciseFinish) {
+        if (timerLayout != null) {
+            ((CountdownTextView) timerLayout.findViewById(R.id.countdownTimer))
+                    .setPreciseFinish(preciseFinish ? PRECISE_FINISH_NANOS : 0);
+        }
+    }
+
+    @Override
+    public void setUserVisibleHint(final boolean isVisibleToUser) {
+        super.setUserVisibleHint(isVisibleToUser);
+        // no point ticking while another tab is showing
+        if (timerLayout != null) {
+            ((CountdownTextView) timerLayout.findViewById(R.id.countdownTimer)).setUserVisible(isVisibleToUser);
+        }
+    }
+
     @Override
     public void onSaveInstanceState(final Bundle saveState) {
         super.onSaveInstanceState(saveState);
@@ -215,8 +235,7 @@ public class CountdownFragment extends Fragment {
     }
 
     private void saveState() {
-        final SharedPreferences.Editor prefs = getContext().getSharedPreferences("Countdown", Context.MODE_PRIVATE)
-                .edit();
+        final SharedPreferences.Editor prefs = StatePersister.get(getContext()).edit("Countdown");
 
         timingState.onSaveState(prefs);
         prefs.putLong("countdownInputs", getInputTimestamp());
@@ -226,11 +245,26 @@ public class CountdownFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        timingState.stopTimer();
+        // the countdown carries on without us; the text stops ticking once it's detached
         handler.removeCallbacks(inputModeOff);
+        AlarmEvents.get(getContext()).unregister(alarmListener);
         alarmSelector.destroy();
     }
 
+    private final AlarmEvents.Listener alarmListener = new AlarmEvents.Listener() {
+        @Override
+        public void onAlarmRinging() {
+            // the countdown's over, so go back to setting up the next one
+            if (!inputMode) {
+                inputModeOn();
+            }
+        }
+
+        @Override
+        public void onAlarmDismissed() {
+        }
+    };
+
     public void inputModeOff() {
         handler.post(inputModeOff);
     }
@@ -246,8 +280,7 @@ public class CountdownFragment extends Fragment {
             if (rootView == null) {
                 return;
             }
-            final SharedPreferences prefs = getContext().getSharedPreferences("TimerActivity", Context.MODE_PRIVATE);
-            if (prefs.getBoolean("countdownDialogShowing", false)) {
+            if (AlarmEvents.get(getContext()).isRinging()) {
                 return;
             }
             inputMode = false;
@@ -260,14 +293,6 @@ public class CountdownFragment extends Fragment {
             inputs.addView(timerLayout);
             startButton.setText(getContext().getString(R.string.countdown_button_cancel));
 
-            final AlarmManager alarmMgr = (AlarmManager) getContext().getSystemService(Context.ALARM_SERVICE);
-            // should be unique
-            final Intent intent = new Intent(getContext(), AlarmService.class).putExtra("startAlarm", true).setAction(
-                    "startAlarmAt" + (timingState.endTime));
-            alarmPendingIntent = PendingIntent.getService(getContext(), 0, intent, PendingIntent.FLAG_ONE_SHOT);
-            alarmMgr.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + getInputTimestamp(),
-                    alarmPendingIntent);
-
             saveState();
         }
 
@@ -291,15 +316,6 @@ public class CountdownFragment extends Fragment {
             inputs.addView(inputLayout);
             startButton.setText(getContext().getString(R.string.countdown_button_start));
             timingState.stopTimer();
-            if (alarmPendingIntent == null) {
-                // should be unique
-                final Intent intent = new Intent(getContext(), AlarmService.class).putExtra("startAlarm", true)
-                        .setAction("startAlarmAt" + (timingState.endTime));
-                alarmPendingIntent = PendingIntent.getService(getContext(), 0, intent, PendingIntent.FLAG_ONE_SHOT);
-            }
-            final AlarmManager alarmMgr = (AlarmManager) getContext().getSystemService(Context.ALARM_SERVICE);
-            alarmMgr.cancel(alarmPendingIntent);
-            alarmPendingIntent = null;
 
             saveState();
         }
@@ -22,45 +22,88 @@ import android.content.SharedPreferences;
 
 /**
  * Maintains the timing state, and keeps the textview state up-to-date.
+ * The end time is the one deadline the countdown has: the text counts
+ * down to it and the alarm is registered for it, so the two can't
+ * disagree.
  *
  * @author dpadgett
  */
 public class CountdownState {
+	private static final long NANOS_PER_MILLI = 1000000L;
+	// how long before the end the alarm sound is got ready
+	private static final long PREWARM_NANOS = 5000L * NANOS_PER_MILLI;
+
+	// in elapsed realtime nanoseconds
 	public long endTime;
 	private final CountdownTextView timerText;
+	private final DeadlineScheduler scheduler;
 	private boolean isRunning;
+	// the end time's handle with the scheduler, or -1 if it has none
+	private int deadlineId = -1;
+	// handle for getting the alarm sound ready just before the end, or -1
+	private int prewarmId = -1;
 	
-	public CountdownState(CountdownTextView timerText, SharedPreferences prefs) {
+	public CountdownState(CountdownTextView timerText, DeadlineScheduler scheduler, SharedPreferences prefs) {
 		this.timerText = timerText;
+		this.scheduler = scheduler;
 		isRunning = false;
 		endTime = 0L;
-		if (prefs.contains("endTime")) {
+		if (prefs.contains("endTimeNanos") || prefs.contains("endTime")) {
 			restoreState(prefs);
 		}
 	}
 	
 	private void restoreState(SharedPreferences prefs) {
-		endTime = prefs.getLong("endTime", endTime);
+		if (prefs.contains("endTimeNanos")) {
+			endTime = prefs.getLong("endTimeNanos", endTime);
+			TimeBase timeBase = TimeBase.restore(prefs, "endTime");
+			if (timeBase != null) {
+				endTime = timeBase.rebase(endTime, TimeSources.get());
+			}
+		} else {
+			// saved by an older version, in wall clock milliseconds
+			endTime = TimeBase.fromWallClock(prefs.getLong("endTime", 0L), TimeSources.get());
+		}
+		deadlineId = prefs.getInt("deadlineId", -1);
+		prewarmId = prefs.getInt("prewarmId", -1);
 		timerText.setEndingTime(endTime);
+		long currentTime = TimeSources.get().elapsedRealtimeNanos();
 		isRunning = prefs.getBoolean("isRunning", isRunning)
-				&& endTime > System.currentTimeMillis();
+				&& endTime > currentTime;
 		if (isRunning) {
-			timerText.forceUpdate(System.currentTimeMillis());
+			timerText.forceUpdate(currentTime);
 		}
 	}
 	
+	/** Stops the countdown, along with its alarm. */
 	public void stopTimer() {
 		if (isRunning) {
 			isRunning = false;
 		}
+		if (deadlineId != -1) {
+			scheduler.cancel(deadlineId);
+			deadlineId = -1;
+		}
+		if (prewarmId != -1) {
+			scheduler.cancel(prewarmId);
+			prewarmId = -1;
+		}
 	}
 	
+	/** Starts counting down from the given duration, in milliseconds. */
 	public void startTimer(long duration) {
 		if (!isRunning) {
-			long currentTime = System.currentTimeMillis();
-			endTime = currentTime + duration;
+			long currentTime = TimeSources.get().elapsedRealtimeNanos();
+			endTime = currentTime + duration * NANOS_PER_MILLI;
 			timerText.setEndingTime(endTime);
 			timerText.forceUpdate(currentTime);
+			if (deadlineId == -1 || !scheduler.reschedule(deadlineId, endTime)) {
+				deadlineId = scheduler.schedule(endTime);
+			}
+			long prewarmTime = Math.max(currentTime, endTime - PREWARM_NANOS);
+			if (prewarmId == -1 || !scheduler.reschedule(prewarmId, prewarmTime)) {
+				prewarmId = scheduler.schedule(prewarmTime);
+			}
 			isRunning = true;
 		}
 	}
@@ -71,6 +114,10 @@ public class CountdownState {
 	
 	public void onSaveState(SharedPreferences.Editor prefs) {
 		prefs.putBoolean("isRunning", isRunning);
-		prefs.putLong("endTime", endTime);
+		prefs.putLong("endTimeNanos", endTime);
+		prefs.putInt("deadlineId", deadlineId);
+		prefs.putInt("prewarmId", prewarmId);
+		TimeBase.capture(TimeSources.get()).save(prefs, "endTime");
+		prefs.remove("endTime");
 	}
 }
@@ -0,0 +1,383 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.util.Map;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+/**
+ * Keeps any number of deadlines, in elapsed realtime nanoseconds, with a
+ * single {@link AlarmManager} registration for whichever is earliest.
+ * The deadlines live in an indexed binary heap, so scheduling, cancelling
+ * and firing are all O(log n), and the system alarm is only touched when
+ * the earliest deadline actually changes.
+ *
+ * Deadlines are identified by handles which carry a generation as well as
+ * a slot, so a handle kept after its deadline fired or was cancelled
+ * won't refer to whatever reuses the slot later.
+ *
+ * When the alarm goes off, {@link AlarmService} is started with
+ * {@link #ACTION_DEADLINES_DUE} and takes whichever deadlines have passed
+ * with {@link #takeExpired()}, which also arms the alarm for the next one.
+ *
+ * @author dpadgett
+ */
+public class DeadlineScheduler {
+
+    static final String ACTION_DEADLINES_DUE = "org.dpadgett.timer.DEADLINES_DUE";
+
+    private static final String PREFS_NAME = "Deadlines";
+    private static final long NANOS_PER_MILLI = 1000000L;
+    // handles are a generation in the high bits and a slot in the low ones
+    private static final int SLOT_BITS = 16;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int GENERATION_MASK = 0x7fff;
+    // the alarm works in whole milliseconds, so allow for it firing a hair early
+    private static final long EXPIRY_SLACK_NANOS = NANOS_PER_MILLI;
+
+    private static DeadlineScheduler instance;
+
+    private final StatePersister persister;
+    private final AlarmManager alarmManager;
+    private final PendingIntent wakeup;
+
+    // min-heap of slots, ordered by their deadlines
+    private int[] heap = new int[8];
+    private int size;
+    // by slot: the deadline, where it sits in the heap (-1 if it isn't
+    // scheduled), and the generation of its current handle
+    private long[] deadlines = new long[8];
+    private int[] positions = new int[8];
+    private int[] generations = new int[8];
+    // slots handed out so far, and a stack of the ones since freed
+    private int nextSlot;
+    private int[] freeSlots = new int[8];
+    private int freeCount;
+    // generation for the next handle; persisted, so handles stay unique across restarts
+    private int nextGeneration;
+    // the deadline the system alarm is set for, or -1 if it isn't set
+    private long armedDeadline = -1;
+
+    private DeadlineScheduler(final Context context) {
+        this.persister = StatePersister.get(context);
+        this.alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        final Intent intent = new Intent(context, AlarmService.class).setAction(ACTION_DEADLINES_DUE);
+        this.wakeup = PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        restoreState(persister.getSharedPreferences(PREFS_NAME));
+    }
+
+    public static synchronized DeadlineScheduler get(final Context context) {
+        if (instance == null) {
+            instance = new DeadlineScheduler(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /** Schedules a new deadline, in elapsed realtime nanoseconds, and returns its handle. */
+    public synchronized int schedule(final long deadline) {
+        final int slot = allocateSlot();
+        deadlines[slot] = deadline;
+        positions[slot] = size;
+        heap[size++] = slot;
+        siftUp(size - 1);
+        save(slot);
+        arm();
+        return handleOf(slot);
+    }
+
+    /**
+     * Moves the given deadline.  Returns false, and does nothing, if it
+     * already fired or was cancelled.
+     */
+    public synchronized boolean reschedule(final int handle, final long deadline) {
+        final int slot = slotOf(handle);
+        if (slot == -1) {
+            return false;
+        }
+        final long old = deadlines[slot];
+        deadlines[slot] = deadline;
+        if (deadline < old) {
+            siftUp(positions[slot]);
+        } else {
+            siftDown(positions[slot]);
+        }
+        save(slot);
+        arm();
+        return true;
+    }
+
+    /** Cancels the given deadline; returns whether it was still pending. */
+    public synchronized boolean cancel(final int handle) {
+        final int slot = slotOf(handle);
+        if (slot == -1) {
+            return false;
+        }
+        removeAt(positions[slot]);
+        unsave(slot);
+        freeSlot(slot);
+        arm();
+        return true;
+    }
+
+    /** Whether the given deadline is still pending. */
+    public synchronized boolean isScheduled(final int handle) {
+        return slotOf(handle) != -1;
+    }
+
+    /** The given deadline, in elapsed realtime nanoseconds. */
+    public synchronized long getDeadline(final int handle) {
+        final int slot = slotOf(handle);
+        if (slot == -1) {
+            throw new IllegalArgumentException("No deadline " + handle);
+        }
+        return deadlines[slot];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes every deadline which has passed and returns their ids, then
+     * arms the alarm for the next one.
+     */
+    public synchronized int[] takeExpired() {
+        final long now = TimeSources.get().elapsedRealtimeNanos() + EXPIRY_SLACK_NANOS;
+        int expired = 0;
+        int[] handles = new int[0];
+        while (size > 0 && deadlines[heap[0]] <= now) {
+            final int slot = heap[0];
+            if (expired == handles.length) {
+                final int[] grown = new int[Math.max(4, expired * 2)];
+                System.arraycopy(handles, 0, grown, 0, expired);
+                handles = grown;
+            }
+            handles[expired++] = handleOf(slot);
+            removeAt(0);
+            unsave(slot);
+            freeSlot(slot);
+        }
+        // the alarm which woke us is gone either way
+        armedDeadline = -1;
+        arm();
+        if (expired < handles.length) {
+            final int[] exact = new int[expired];
+            System.arraycopy(handles, 0, exact, 0, expired);
+            handles = exact;
+        }
+        return handles;
+    }
+
+    /** Points the system alarm at the earliest deadline, if that changed. */
+    private void arm() {
+        if (size == 0) {
+            if (armedDeadline != -1) {
+                alarmManager.cancel(wakeup);
+                armedDeadline = -1;
+            }
+            return;
+        }
+        final long earliest = deadlines[heap[0]];
+        if (earliest == armedDeadline) {
+            return;
+        }
+        final long triggerAtMillis = (earliest + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI;
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAtMillis, wakeup);
+        armedDeadline = earliest;
+    }
+
+    private void removeAt(final int position) {
+        final int id = heap[position];
+        positions[id] = -1;
+        size--;
+        if (position == size) {
+            return;
+        }
+        final int last = heap[size];
+        heap[position] = last;
+        positions[last] = position;
+        siftDown(position);
+        siftUp(positions[last]);
+    }
+
+    private void siftUp(int position) {
+        final int id = heap[position];
+        while (position > 0) {
+            final int parent = (position - 1) >>> 1;
+            if (deadlines[heap[parent]] <= deadlines[id]) {
+                break;
+            }
+            heap[position] = heap[parent];
+            positions[heap[position]] = position;
+            position = parent;
+        }
+        heap[position] = id;
+        positions[id] = position;
+    }
+
+    private void siftDown(int position) {
+        final int id = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && deadlines[heap[child + 1]] < deadlines[heap[child]]) {
+                child++;
+            }
+            if (deadlines[id] <= deadlines[heap[child]]) {
+                break;
+            }
+            heap[position] = heap[child];
+            positions[heap[position]] = position;
+            position = child;
+        }
+        heap[position] = id;
+        positions[id] = position;
+    }
+
+    private int handleOf(final int slot) {
+        return (generations[slot] << SLOT_BITS) | slot;
+    }
+
+    /** Returns the slot of the given handle, or -1 if the handle is stale. */
+    private int slotOf(final int handle) {
+        final int slot = handle & SLOT_MASK;
+        if (handle < 0 || slot >= nextSlot || positions[slot] < 0 || handleOf(slot) != handle) {
+            return -1;
+        }
+        return slot;
+    }
+
+    private int allocateSlot() {
+        final int slot = newSlot();
+        generations[slot] = nextGeneration;
+        nextGeneration = (nextGeneration + 1) & GENERATION_MASK;
+        return slot;
+    }
+
+    private int newSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (nextSlot > SLOT_MASK) {
+            throw new IllegalStateException("Too many deadlines");
+        }
+        final int slot = nextSlot++;
+        if (slot == deadlines.length) {
+            final long[] grownDeadlines = new long[slot * 2];
+            System.arraycopy(deadlines, 0, grownDeadlines, 0, slot);
+            deadlines = grownDeadlines;
+            final int[] grownPositions = new int[slot * 2];
+            System.arraycopy(positions, 0, grownPositions, 0, slot);
+            positions = grownPositions;
+            final int[] grownGenerations = new int[slot * 2];
+            System.arraycopy(generations, 0, grownGenerations, 0, slot);
+            generations = grownGenerations;
+            final int[] grownHeap = new int[slot * 2];
+            System.arraycopy(heap, 0, grownHeap, 0, size);
+            heap = grownHeap;
+        }
+        positions[slot] = -1;
+        return slot;
+    }
+
+    private void freeSlot(final int slot) {
+        if (freeCount == freeSlots.length) {
+            final int[] grown = new int[freeCount * 2];
+            System.arraycopy(freeSlots, 0, grown, 0, freeCount);
+            freeSlots = grown;
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    private void save(final int slot) {
+        final SharedPreferences.Editor prefs = persister.edit(PREFS_NAME);
+        prefs.putLong("deadline" + handleOf(slot), deadlines[slot]);
+        prefs.putInt("nextGeneration", nextGeneration);
+        TimeBase.capture(TimeSources.get()).save(prefs, "deadlines");
+        prefs.commit();
+    }
+
+    /** Saves every deadline, with a time base from this boot. */
+    private void saveAll() {
+        final SharedPreferences.Editor prefs = persister.edit(PREFS_NAME);
+        for (int position = 0; position < size; position++) {
+            prefs.putLong("deadline" + handleOf(heap[position]), deadlines[heap[position]]);
+        }
+        TimeBase.capture(TimeSources.get()).save(prefs, "deadlines");
+        prefs.commit();
+    }
+
+    private void unsave(final int slot) {
+        final SharedPreferences.Editor prefs = persister.edit(PREFS_NAME);
+        prefs.remove("deadline" + handleOf(slot));
+        prefs.commit();
+    }
+
+    private void restoreState(final SharedPreferences prefs) {
+        final TimeBase timeBase = TimeBase.restore(prefs, "deadlines");
+        final boolean rebooted = timeBase != null && !timeBase.isSameBoot(TimeSources.get());
+        nextGeneration = prefs.getInt("nextGeneration", 0);
+        for (final Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith("deadline") || !(entry.getValue() instanceof Long)) {
+                continue;
+            }
+            final int handle;
+            try {
+                handle = Integer.parseInt(entry.getKey().substring("deadline".length()));
+            } catch (final NumberFormatException e) {
+                continue;
+            }
+            final int slot = handle & SLOT_MASK;
+            while (nextSlot <= slot) {
+                newSlot();
+            }
+            long deadline = (Long) entry.getValue();
+            if (rebooted) {
+                // carries deadlines across a reboot
+                deadline = timeBase.rebase(deadline, TimeSources.get());
+            }
+            generations[slot] = handle >>> SLOT_BITS;
+            deadlines[slot] = deadline;
+            positions[slot] = size;
+            heap[size++] = slot;
+        }
+        // every slot not in use goes back on the free stack
+        for (int slot = nextSlot - 1; slot >= 0; slot--) {
+            if (positions[slot] < 0) {
+                freeSlot(slot);
+            }
+        }
+        for (int position = size / 2 - 1; position >= 0; position--) {
+            siftDown(position);
+        }
+        if (rebooted) {
+            // the saved deadlines and their base have to move to this boot
+            // together, or the next save would pair the old deadlines with a
+            // new base
+            saveAll();
+        }
+        // we don't know what the system alarm was left at, so set it regardless
+        arm();
+    }
+}
@@ -0,0 +1,122 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import android.os.Bundle;
+import android.widget.TextView;
+
+import com.actionbarsherlock.app.SherlockActivity;
+import com.actionbarsherlock.view.Menu;
+import com.actionbarsherlock.view.MenuItem;
+
+/**
+ * Shows how late alarms have gone off, and how long their sound then took
+ * to start, from the {@link LatencyHistogram}s which {@link AlarmService}
+ * fills in, so we can see how much the system holds them back on a given
+ * device.  Also shows how long the stopwatch buttons' clicks took to be
+ * handled after they were pressed.
+ *
+ * @author dpadgett
+ */
+public class DiagnosticsActivity extends SherlockActivity {
+
+    private static final int MENU_RESET = 1;
+    // widest bar in the histogram, in characters
+    private static final int BAR_WIDTH = 20;
+
+    private LatencyHistogram alarmLatencies;
+    private LatencyHistogram soundLatencies;
+    private LatencyHistogram inputLatencies;
+    private TextView alarmLatencyText;
+    private TextView soundLatencyText;
+    private TextView inputLatencyText;
+
+    @Override
+    public void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+        alarmLatencies = LatencyHistogram.get(this, LatencyHistogram.ALARM_LATENCY);
+        soundLatencies = LatencyHistogram.get(this, LatencyHistogram.SOUND_LATENCY);
+        inputLatencies = LatencyHistogram.get(this, LatencyHistogram.INPUT_LATENCY);
+        alarmLatencyText = (TextView) findViewById(R.id.diagnosticsAlarmLatency);
+        soundLatencyText = (TextView) findViewById(R.id.diagnosticsSoundLatency);
+        inputLatencyText = (TextView) findViewById(R.id.diagnosticsInputLatency);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        update();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(final Menu menu) {
+        menu.add(Menu.NONE, MENU_RESET, Menu.NONE, R.string.diagnostics_reset);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(final MenuItem item) {
+        if (item.getItemId() == MENU_RESET) {
+            alarmLatencies.clear();
+            soundLatencies.clear();
+            inputLatencies.clear();
+            update();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void update() {
+        show(alarmLatencies, R.string.diagnostics_latency_summary, alarmLatencyText);
+        show(soundLatencies, R.string.diagnostics_latency_summary, soundLatencyText);
+        show(inputLatencies, R.string.diagnostics_press_summary, inputLatencyText);
+    }
+
+    private void show(final LatencyHistogram latencies, final int summaryId, final TextView latencyText) {
+        final StringBuilder text = new StringBuilder(getString(summaryId,
+                latencies.getCount(), latencies.getMeanMillis(), latencies.getPercentileMillis(0.5),
+                latencies.getPercentileMillis(0.95), latencies.getMaxMillis()));
+
+        long largest = 1;
+        for (int bucket = 0; bucket < latencies.getBucketCount(); bucket++) {
+            largest = Math.max(largest, latencies.getBucket(bucket));
+        }
+        for (int bucket = 0; bucket < latencies.getBucketCount(); bucket++) {
+            final long upper = latencies.getBucketUpperMillis(bucket);
+            final String label = upper == Long.MAX_VALUE
+                    ? getString(R.string.diagnostics_bucket_at_least,
+                            formatMillis(latencies.getBucketUpperMillis(bucket - 1)))
+                    : getString(R.string.diagnostics_bucket_below, formatMillis(upper));
+            text.append('\n').append(String.format("%-8s %6d ", label, latencies.getBucket(bucket)));
+            final long bar = (latencies.getBucket(bucket) * BAR_WIDTH + largest - 1) / largest;
+            for (int idx = 0; idx < bar; idx++) {
+                text.append('#');
+            }
+        }
+        latencyText.setText(text);
+    }
+
+    private String formatMillis(final long millis) {
+        if (millis < 1000) {
+            return getString(R.string.diagnostics_millis, millis);
+        } else if (millis < 60000) {
+            return getString(R.string.diagnostics_seconds, millis / 1000);
+        }
+        return getString(R.string.diagnostics_minutes, millis / 60000);
+    }
+}
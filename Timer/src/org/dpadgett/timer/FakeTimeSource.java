@@ -0,0 +1,82 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+/**
+ * {@link TimeSource} which only moves when told to, for tests.  Install it
+ * with {@link TimeSources#setDefault(TimeSource)}.
+ *
+ * @author dpadgett
+ */
+public class FakeTimeSource implements TimeSource {
+	private long elapsedRealtimeNanos;
+	private long uptimeMillis;
+	private long currentTimeMillis;
+	private String bootId;
+
+	public FakeTimeSource(long elapsedRealtimeNanos, long currentTimeMillis, String bootId) {
+		this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+		this.uptimeMillis = elapsedRealtimeNanos / 1000000L;
+		this.currentTimeMillis = currentTimeMillis;
+		this.bootId = bootId;
+	}
+
+	/** Moves every clock forward by the given amount. */
+	public void advanceNanos(long nanos) {
+		elapsedRealtimeNanos += nanos;
+		uptimeMillis += nanos / 1000000L;
+		currentTimeMillis += nanos / 1000000L;
+	}
+
+	/** Simulates deep sleep: every clock but uptime moves forward. */
+	public void sleepNanos(long nanos) {
+		elapsedRealtimeNanos += nanos;
+		currentTimeMillis += nanos / 1000000L;
+	}
+
+	/** Moves only the wall clock, like a manual clock change or NTP adjustment would. */
+	public void adjustWallClockMillis(long millis) {
+		currentTimeMillis += millis;
+	}
+
+	/** Simulates a reboot: the monotonic clock restarts from the given value. */
+	public void reboot(long elapsedRealtimeNanos, String bootId) {
+		this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+		this.uptimeMillis = elapsedRealtimeNanos / 1000000L;
+		this.bootId = bootId;
+	}
+
+	@Override
+	public long elapsedRealtimeNanos() {
+		return elapsedRealtimeNanos;
+	}
+
+	@Override
+	public long uptimeMillis() {
+		return uptimeMillis;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return currentTimeMillis;
+	}
+
+	@Override
+	public String getBootId() {
+		return bootId;
+	}
+}
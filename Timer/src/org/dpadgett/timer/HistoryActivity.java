@@ -0,0 +1,228 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+import org.dpadgett.widget.DurationFormatter;
+import org.dpadgett.widget.LRUCache;
+
+import android.app.AlertDialog;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.actionbarsherlock.app.SherlockActivity;
+import com.actionbarsherlock.view.Menu;
+import com.actionbarsherlock.view.MenuItem;
+
+/**
+ * Lists archived stopwatch sessions, a page at a time.  Only the pages
+ * around what is on screen are ever read from the archive, and a
+ * session's laps are only read when it is opened.
+ *
+ * @author dpadgett
+ */
+public class HistoryActivity extends SherlockActivity {
+
+    private static final int PAGE_SIZE = 50;
+    private static final int CACHED_PAGES = 4;
+    private static final int MENU_SORT_DATE = 1;
+    private static final int MENU_SORT_DURATION = 2;
+
+    private SessionArchive archive;
+    private SessionArchive.Order order = SessionArchive.Order.DATE;
+    private SessionsAdapter adapter;
+    private LRUCache<Integer, SessionArchive.Session[]> pages;
+    private final DurationFormatter formatter =
+            new DurationFormatter(DurationFormatter.Precision.MILLISECONDS, false);
+    private DateFormat dateFormat;
+
+    @Override
+    public void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.history);
+
+        archive = SessionArchive.get(this);
+        dateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+        if (savedInstanceState != null && savedInstanceState.containsKey("order")) {
+            order = SessionArchive.Order.valueOf(savedInstanceState.getString("order"));
+        }
+        pages = new LRUCache<Integer, SessionArchive.Session[]>(new PageLoader(), CACHED_PAGES);
+
+        adapter = new SessionsAdapter();
+        final ListView historyList = (ListView) findViewById(R.id.historyList);
+        historyList.setEmptyView(findViewById(R.id.historyEmpty));
+        historyList.setAdapter(adapter);
+        historyList.setOnItemClickListener(new OnItemClickListener() {
+            @Override
+            public void onItemClick(final AdapterView<?> parent, final View view, final int position, final long id) {
+                showSession(adapter.getItem(position));
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // the stopwatch may have archived a session in the meantime
+        StatePersister.get(this).flush();
+        pages.clear();
+        adapter.notifyDataSetChanged();
+    }
+
+    @Override
+    protected void onSaveInstanceState(final Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString("order", order.name());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(final Menu menu) {
+        menu.add(Menu.NONE, MENU_SORT_DATE, Menu.NONE, R.string.history_sort_date);
+        menu.add(Menu.NONE, MENU_SORT_DURATION, Menu.NONE, R.string.history_sort_duration);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(final MenuItem item) {
+        switch (item.getItemId()) {
+        case MENU_SORT_DATE:
+            setOrder(SessionArchive.Order.DATE);
+            return true;
+        case MENU_SORT_DURATION:
+            setOrder(SessionArchive.Order.DURATION);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void setOrder(final SessionArchive.Order order) {
+        if (this.order != order) {
+            this.order = order;
+            pages.clear();
+            adapter.notifyDataSetChanged();
+        }
+    }
+
+    /** Shows the laps of a single session, which are only read now. */
+    private void showSession(final SessionArchive.Session session) {
+        final long[] laps = archive.readLaps(session);
+        final String lapLabelPrefix = getString(R.string.lap_times_lap_label) + " ";
+        final BaseAdapter lapsAdapter = new BaseAdapter() {
+            @Override
+            public int getCount() {
+                return laps.length;
+            }
+
+            @Override
+            public Long getItem(final int position) {
+                return laps[position];
+            }
+
+            @Override
+            public long getItemId(final int position) {
+                return position;
+            }
+
+            @Override
+            public View getView(final int position, final View convertView, final ViewGroup parent) {
+                View lapLayout = convertView;
+                if (lapLayout == null) {
+                    lapLayout = LayoutInflater.from(HistoryActivity.this).inflate(R.layout.single_lap_time, parent,
+                            false);
+                }
+                ((TextView) lapLayout.findViewById(R.id.lapLabel)).setText(lapLabelPrefix + (position + 1));
+                ((TextView) lapLayout.findViewById(R.id.lapTime)).setText(formatter.formatToString(laps[position]));
+                return lapLayout;
+            }
+        };
+        new AlertDialog.Builder(this)
+                .setTitle(formatter.formatToString(session.getTotalNanos()))
+                .setAdapter(lapsAdapter, null)
+                .create().show();
+    }
+
+    private class PageLoader implements LRUCache.Loader<Integer, SessionArchive.Session[]> {
+        @Override
+        public SessionArchive.Session[] load(final Integer page, final SessionArchive.Session[] unusedValue) {
+            final SessionArchive.Session[] sessions =
+                    unusedValue != null ? unusedValue : new SessionArchive.Session[PAGE_SIZE];
+            archive.readPage(order, page * PAGE_SIZE, sessions);
+            return sessions;
+        }
+    }
+
+    private static final class SessionViewHolder {
+        private final TextView total;
+        private final TextView summary;
+
+        private SessionViewHolder(final View sessionLayout) {
+            total = (TextView) sessionLayout.findViewById(R.id.sessionTotal);
+            summary = (TextView) sessionLayout.findViewById(R.id.sessionSummary);
+        }
+    }
+
+    private class SessionsAdapter extends BaseAdapter {
+
+        @Override
+        public int getCount() {
+            return archive.size();
+        }
+
+        @Override
+        public SessionArchive.Session getItem(final int position) {
+            return pages.get(position / PAGE_SIZE)[position % PAGE_SIZE];
+        }
+
+        @Override
+        public long getItemId(final int position) {
+            return getItem(position).getRecord();
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(final int position, final View convertView, final ViewGroup parent) {
+            View sessionLayout = convertView;
+            final SessionViewHolder holder;
+            if (sessionLayout == null) {
+                sessionLayout = LayoutInflater.from(HistoryActivity.this).inflate(R.layout.single_session, parent,
+                        false);
+                holder = new SessionViewHolder(sessionLayout);
+                sessionLayout.setTag(holder);
+            } else {
+                holder = (SessionViewHolder) sessionLayout.getTag();
+            }
+            final SessionArchive.Session session = getItem(position);
+            holder.total.setText(formatter.formatToString(session.getTotalNanos()));
+            holder.summary.setText(getString(R.string.history_session_summary,
+                    dateFormat.format(new Date(session.getStartWallMillis())), session.getLapCount()));
+            return sessionLayout;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Runs an interval program: a number of rounds of work followed by rest,
+ * with no rest after the last round.  When the program starts, it is
+ * compiled into the end of every segment relative to the start, each
+ * worked out from the program itself rather than by adding up the
+ * segments before it, so nothing drifts however long the program runs.
+ *
+ * Only the next segment boundary is ever registered with the
+ * {@link DeadlineScheduler}.  Pausing and resuming just move the start
+ * of the program, which shifts the whole remaining timeline at once.
+ * Boundaries are handled on the alarm service's worker thread, so
+ * everything here is synchronized.
+ *
+ * @author dpadgett
+ */
+public class IntervalTimer {
+
+    private static final String PREFS_NAME = "Intervals";
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static IntervalTimer instance;
+
+    private final StatePersister persister;
+    private final DeadlineScheduler scheduler;
+
+    private int rounds;
+    private long workNanos;
+    private long restNanos;
+    // end of each segment, relative to the start of the program, in nanoseconds
+    private long[] boundaries;
+
+    private boolean started;
+    private boolean paused;
+    // when the program started, in elapsed realtime nanoseconds; each pause moves it later
+    private long startedAt;
+    // when the current pause began, in elapsed realtime nanoseconds
+    private long pausedAt;
+    // the scheduler's handle for the next boundary, or -1 if none is pending
+    private int deadlineHandle = -1;
+
+    private IntervalTimer(final Context context) {
+        this.persister = StatePersister.get(context);
+        this.scheduler = DeadlineScheduler.get(context);
+        restoreState(persister.getSharedPreferences(PREFS_NAME));
+    }
+
+    public static synchronized IntervalTimer get(final Context context) {
+        if (instance == null) {
+            instance = new IntervalTimer(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public synchronized int getRounds() {
+        return rounds;
+    }
+
+    public synchronized long getWorkNanos() {
+        return workNanos;
+    }
+
+    public synchronized long getRestNanos() {
+        return restNanos;
+    }
+
+    /** Sets the program to run; ignored while one is already started. */
+    public synchronized void setProgram(final int rounds, final long workNanos, final long restNanos) {
+        if (started) {
+            return;
+        }
+        this.rounds = Math.max(1, rounds);
+        this.workNanos = Math.max(0, workNanos);
+        this.restNanos = Math.max(0, restNanos);
+        compile();
+        saveState();
+    }
+
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /** Starts the program from its first segment, as of the given elapsed realtime. */
+    public synchronized void start(final long now) {
+        if (started) {
+            return;
+        }
+        started = true;
+        paused = false;
+        startedAt = now;
+        arm(now);
+        saveState();
+    }
+
+    public synchronized void pause(final long now) {
+        if (!started || paused) {
+            return;
+        }
+        paused = true;
+        pausedAt = now;
+        disarm();
+        saveState();
+    }
+
+    public synchronized void resume(final long now) {
+        if (!started || !paused) {
+            return;
+        }
+        paused = false;
+        startedAt += now - pausedAt;
+        arm(now);
+        saveState();
+    }
+
+    /** Stops the program and goes back to its first segment. */
+    public synchronized void reset() {
+        started = false;
+        paused = false;
+        disarm();
+        saveState();
+    }
+
+    /** Number of segments in the program, counting work and rest separately. */
+    public synchronized int getSegmentCount() {
+        return boundaries.length;
+    }
+
+    /**
+     * The segment the program is in as of the given elapsed realtime, or
+     * {@link #getSegmentCount()} once it has finished.  Even segments are
+     * work, odd ones rest, and segment / 2 is the round.
+     */
+    public synchronized int getSegment(final long now) {
+        if (!started) {
+            return 0;
+        }
+        final long position = getPosition(now);
+        // the first segment which hasn't ended yet
+        int low = 0;
+        int high = boundaries.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (boundaries[mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Time left in the current segment as of the given elapsed realtime, in nanoseconds. */
+    public synchronized long getSegmentRemaining(final long now) {
+        final int segment = getSegment(now);
+        if (segment == boundaries.length) {
+            return 0;
+        }
+        final long segmentEnd = boundaries[segment];
+        return started ? segmentEnd - getPosition(now) : segmentEnd;
+    }
+
+    /**
+     * Called with every handle the scheduler reports as expired; returns
+     * whether it was this timer's.  If so, the next boundary is armed.
+     */
+    public synchronized boolean onDeadlineExpired(final int handle) {
+        if (handle != deadlineHandle || deadlineHandle == -1) {
+            return false;
+        }
+        // expired deadlines are already gone from the scheduler
+        deadlineHandle = -1;
+        if (started && !paused) {
+            arm(TimeSources.get().elapsedRealtimeNanos());
+        }
+        saveState();
+        return true;
+    }
+
+    private long getPosition(final long now) {
+        return (paused ? pausedAt : now) - startedAt;
+    }
+
+    private void compile() {
+        final long roundNanos = workNanos + restNanos;
+        boundaries = new long[2 * rounds - 1];
+        for (int round = 0; round < rounds; round++) {
+            boundaries[2 * round] = round * roundNanos + workNanos;
+            if (round < rounds - 1) {
+                boundaries[2 * round + 1] = (round + 1) * roundNanos;
+            }
+        }
+    }
+
+    /** Registers the end of the current segment, or nothing once the program has finished. */
+    private void arm(final long now) {
+        final int segment = getSegment(now);
+        if (segment == boundaries.length) {
+            disarm();
+            return;
+        }
+        final long deadline = startedAt + boundaries[segment];
+        if (deadlineHandle == -1 || !scheduler.reschedule(deadlineHandle, deadline)) {
+            deadlineHandle = scheduler.schedule(deadline);
+        }
+    }
+
+    private void disarm() {
+        if (deadlineHandle != -1) {
+            scheduler.cancel(deadlineHandle);
+            deadlineHandle = -1;
+        }
+    }
+
+    private void saveState() {
+        final SharedPreferences.Editor prefs = persister.edit(PREFS_NAME);
+        prefs.putInt("rounds", rounds);
+        prefs.putLong("workNanos", workNanos);
+        prefs.putLong("restNanos", restNanos);
+        prefs.putBoolean("started", started);
+        prefs.putBoolean("paused", paused);
+        prefs.putLong("startedAtNanos", startedAt);
+        prefs.putLong("pausedAtNanos", pausedAt);
+        prefs.putInt("deadlineHandle", deadlineHandle);
+        TimeBase.capture(TimeSources.get()).save(prefs, "startedAt");
+        prefs.commit();
+    }
+
+    private void restoreState(final SharedPreferences prefs) {
+        rounds = Math.max(1, prefs.getInt("rounds", 8));
+        workNanos = prefs.getLong("workNanos", 20 * NANOS_PER_SECOND);
+        restNanos = prefs.getLong("restNanos", 10 * NANOS_PER_SECOND);
+        compile();
+        started = prefs.getBoolean("started", false);
+        paused = prefs.getBoolean("paused", false);
+        startedAt = prefs.getLong("startedAtNanos", 0L);
+        pausedAt = prefs.getLong("pausedAtNanos", 0L);
+        deadlineHandle = prefs.getInt("deadlineHandle", -1);
+        final TimeBase timeBase = TimeBase.restore(prefs, "startedAt");
+        if (started && timeBase != null) {
+            // carries the program across a reboot; rebasing both keeps a pause the same length
+            startedAt = timeBase.rebase(startedAt, TimeSources.get());
+            pausedAt = timeBase.rebase(pausedAt, TimeSources.get());
+        }
+        if (started && !paused) {
+            arm(TimeSources.get().elapsedRealtimeNanos());
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import org.dpadgett.widget.DurationFormatter;
+import org.dpadgett.widget.Ticker;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.TextView;
+
+/**
+ * Fragment which handles the UI for the interval timer: the program's
+ * rounds, work and rest times, and the time left in the current segment.
+ * The segment boundaries themselves are kept by {@link IntervalTimer},
+ * which beeps on each one whether or not this is showing.
+ *
+ * @author dpadgett
+ */
+public class IntervalsFragment extends Fragment {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // rounds up, so the display reaches zero just as the segment ends
+    private final DurationFormatter formatter = new DurationFormatter(DurationFormatter.Precision.SECONDS, true);
+    private Context context;
+    private IntervalTimer timer;
+    private View rootView;
+    private EditText roundsInput;
+    private EditText workInput;
+    private EditText restInput;
+    private TextView statusText;
+    private TextView timeText;
+    private Button startButton;
+    // what was last shown, so unchanged text isn't set again
+    private int shownSegment = -1;
+    private long shownUnits = -1;
+
+    private final Ticker.OnTickListener tickListener = new Ticker.OnTickListener() {
+        @Override
+        public void onTick() {
+            updateTicking();
+        }
+    };
+
+    @Override
+    public View onCreateView(final LayoutInflater inflater, final ViewGroup container, final Bundle savedInstanceState) {
+        rootView = inflater.inflate(R.layout.intervals, container, false);
+        context = rootView.getContext();
+        timer = IntervalTimer.get(context);
+
+        roundsInput = (EditText) rootView.findViewById(R.id.intervalsRounds);
+        workInput = (EditText) rootView.findViewById(R.id.intervalsWork);
+        restInput = (EditText) rootView.findViewById(R.id.intervalsRest);
+        statusText = (TextView) rootView.findViewById(R.id.intervalsStatus);
+        timeText = (TextView) rootView.findViewById(R.id.intervalsTime);
+        startButton = (Button) rootView.findViewById(R.id.intervalsStartButton);
+        final Button resetButton = (Button) rootView.findViewById(R.id.intervalsResetButton);
+
+        roundsInput.setText(String.valueOf(timer.getRounds()));
+        workInput.setText(String.valueOf(timer.getWorkNanos() / NANOS_PER_SECOND));
+        restInput.setText(String.valueOf(timer.getRestNanos() / NANOS_PER_SECOND));
+
+        startButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(final View view) {
+                final long now = TimeSources.get().elapsedRealtimeNanos();
+                if (!timer.isStarted()) {
+                    timer.setProgram(parse(roundsInput), parse(workInput) * NANOS_PER_SECOND,
+                            parse(restInput) * NANOS_PER_SECOND);
+                    timer.start(now);
+                } else if (timer.isPaused()) {
+                    timer.resume(now);
+                } else {
+                    timer.pause(now);
+                }
+                bind();
+            }
+        });
+
+        resetButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(final View view) {
+                timer.reset();
+                bind();
+            }
+        });
+
+        bind();
+        return rootView;
+    }
+
+    private static int parse(final EditText input) {
+        try {
+            return Integer.parseInt(input.getText().toString());
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (rootView != null) {
+            // the program may have moved on while we were away
+            bind();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (context != null) {
+            Ticker.get(context).cancel(tickListener);
+        }
+    }
+
+    @Override
+    public void setUserVisibleHint(final boolean isVisibleToUser) {
+        super.setUserVisibleHint(isVisibleToUser);
+        // no point ticking while another tab is showing
+        updateTicking();
+    }
+
+    private void bind() {
+        final boolean started = timer.isStarted();
+        roundsInput.setEnabled(!started);
+        workInput.setEnabled(!started);
+        restInput.setEnabled(!started);
+        if (!started) {
+            startButton.setText(context.getString(R.string.stopwatch_button_start));
+        } else if (timer.isPaused()) {
+            startButton.setText(context.getString(R.string.intervals_button_resume));
+        } else {
+            startButton.setText(context.getString(R.string.intervals_button_pause));
+        }
+        shownSegment = -1;
+        shownUnits = -1;
+        updateTicking();
+    }
+
+    /**
+     * Brings the text up to date and asks for a tick when it next changes,
+     * either on the next whole second or at the end of the segment.
+     */
+    private void updateTicking() {
+        if (rootView == null) {
+            return;
+        }
+        final long now = TimeSources.get().elapsedRealtimeNanos();
+        final int segment = timer.getSegment(now);
+        final long remaining = timer.getSegmentRemaining(now);
+        if (segment != shownSegment) {
+            shownSegment = segment;
+            if (segment == timer.getSegmentCount()) {
+                statusText.setText(context.getString(R.string.intervals_status_done));
+            } else {
+                statusText.setText(context.getString(segment % 2 == 0 ? R.string.intervals_status_work
+                        : R.string.intervals_status_rest, segment / 2 + 1, timer.getRounds()));
+            }
+        }
+        final long units = formatter.toUnits(remaining);
+        if (units != shownUnits) {
+            shownUnits = units;
+            timeText.setText(formatter.getBuffer(), 0, formatter.format(remaining));
+        }
+
+        final Ticker ticker = Ticker.get(context);
+        if (!timer.isStarted() || timer.isPaused() || segment == timer.getSegmentCount()
+                || !getUserVisibleHint() || !isResumed() || !rootView.isShown()) {
+            ticker.cancel(tickListener);
+            return;
+        }
+        // the text rounds up, so it changes once we are a whole second lower
+        ticker.schedule(tickListener, remaining - (units - 1) * NANOS_PER_SECOND);
+    }
+}
@@ -0,0 +1,311 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import org.dpadgett.widget.DurationFormatter;
+import org.dpadgett.widget.Ticker;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemLongClickListener;
+import android.widget.BaseAdapter;
+import android.widget.Button;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * Fragment which shows any number of stopwatches side by side, one per
+ * lane.  All of the visible lanes are redrawn from a single tick, which
+ * only walks the rows the list currently has on screen.
+ *
+ * @author dpadgett
+ */
+public class LanesFragment extends Fragment {
+
+    private static final DurationFormatter.Precision PRECISION = DurationFormatter.Precision.MILLISECONDS;
+
+    private Context context;
+    private StopwatchEngine engine;
+    private ListView lanesList;
+    private LanesAdapter adapter;
+    private PressTimestamps pressTimestamps;
+    private String lapTimePrefix;
+
+    private final Ticker.OnTickListener tickListener = new Ticker.OnTickListener() {
+        @Override
+        public void onTick() {
+            updateTicking();
+        }
+    };
+
+    @Override
+    public View onCreateView(final LayoutInflater inflater, final ViewGroup container, final Bundle savedInstanceState) {
+        final View rootView = inflater.inflate(R.layout.lanes, container, false);
+        context = rootView.getContext();
+        engine = StopwatchEngine.get(context);
+        lapTimePrefix = String.format("%s ", context.getString(R.string.stopwatch_lap_time_prefix));
+        pressTimestamps = new PressTimestamps(TimeSources.get(),
+                LatencyHistogram.get(context, LatencyHistogram.INPUT_LATENCY));
+
+        adapter = new LanesAdapter();
+        lanesList = (ListView) rootView.findViewById(R.id.lanesList);
+        lanesList.setAdapter(adapter);
+        lanesList.setOnItemLongClickListener(new OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(final AdapterView<?> parent, final View view, final int position,
+                    final long id) {
+                removeLaneDialog(position);
+                return true;
+            }
+        });
+
+        final Button addLaneButton = (Button) rootView.findViewById(R.id.addLaneButton);
+        addLaneButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(final View view) {
+                engine.add();
+                adapter.notifyDataSetChanged();
+                lanesList.setSelection(engine.size() - 1);
+            }
+        });
+
+        return rootView;
+    }
+
+    private void removeLaneDialog(final int position) {
+        new AlertDialog.Builder(context)
+                .setTitle(context.getString(R.string.lanes_lane_label, position + 1))
+                .setPositiveButton(context.getString(R.string.lanes_button_remove),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(final DialogInterface dialog, final int which) {
+                                engine.remove(position);
+                                adapter.notifyDataSetChanged();
+                            }
+                        })
+                .create().show();
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        updateTicking();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (context != null) {
+            Ticker.get(context).cancel(tickListener);
+        }
+    }
+
+    @Override
+    public void setUserVisibleHint(final boolean isVisibleToUser) {
+        super.setUserVisibleHint(isVisibleToUser);
+        // no point ticking while another tab is showing
+        updateTicking();
+    }
+
+    /**
+     * Brings every lane on screen up to date, and asks for a tick when the
+     * first of the running ones is next due to change.
+     */
+    private void updateTicking() {
+        if (lanesList == null) {
+            return;
+        }
+        final Ticker ticker = Ticker.get(context);
+        if (!getUserVisibleHint() || !isResumed() || !lanesList.isShown()) {
+            ticker.cancel(tickListener);
+            return;
+        }
+        final long now = TimeSources.get().elapsedRealtimeNanos();
+        final long nanosPerUnit = PRECISION.getNanosPerUnit();
+        long untilChange = Long.MAX_VALUE;
+        for (int idx = 0; idx < lanesList.getChildCount(); idx++) {
+            final LaneViewHolder holder = (LaneViewHolder) lanesList.getChildAt(idx).getTag();
+            if (holder == null || holder.position >= engine.size()) {
+                continue;
+            }
+            holder.update(now);
+            if (engine.isRunning(holder.position)) {
+                final long elapsed = engine.getElapsed(holder.position, now);
+                final long lapElapsed = engine.getLapElapsed(holder.position, now);
+                untilChange = Math.min(untilChange, nanosPerUnit - elapsed % nanosPerUnit);
+                untilChange = Math.min(untilChange, nanosPerUnit - lapElapsed % nanosPerUnit);
+            }
+        }
+        if (untilChange == Long.MAX_VALUE) {
+            ticker.cancel(tickListener);
+        } else {
+            ticker.schedule(tickListener, untilChange);
+        }
+    }
+
+    private final OnClickListener startStopListener = new OnClickListener() {
+        @Override
+        public void onClick(final View view) {
+            final LaneViewHolder holder = (LaneViewHolder) view.getTag();
+            final long pressedAt = pressTimestamps.consume(view);
+            if (engine.isRunning(holder.position)) {
+                engine.stop(holder.position, pressedAt);
+            } else {
+                engine.start(holder.position, pressedAt);
+            }
+            holder.bind(holder.position);
+            updateTicking();
+        }
+    };
+
+    private final OnClickListener lapResetListener = new OnClickListener() {
+        @Override
+        public void onClick(final View view) {
+            final LaneViewHolder holder = (LaneViewHolder) view.getTag();
+            final long pressedAt = pressTimestamps.consume(view);
+            if (engine.isRunning(holder.position)) {
+                engine.lap(holder.position, pressedAt);
+            } else {
+                engine.reset(holder.position);
+            }
+            holder.bind(holder.position);
+            updateTicking();
+        }
+    };
+
+    private final class LaneViewHolder {
+        private final TextView label;
+        private final TextView time;
+        private final TextView lapTime;
+        private final TextView laps;
+        private final Button startButton;
+        private final Button lapButton;
+        private final DurationFormatter timeFormatter = new DurationFormatter(PRECISION, false);
+        private final DurationFormatter lapFormatter = new DurationFormatter(PRECISION, false);
+        private final DurationFormatter lapsFormatter = new DurationFormatter(PRECISION, false);
+        private int position;
+        // the units last shown, so unchanged text isn't set again
+        private long shownUnits;
+        private long shownLapUnits;
+
+        private LaneViewHolder(final View laneLayout) {
+            label = (TextView) laneLayout.findViewById(R.id.laneLabel);
+            time = (TextView) laneLayout.findViewById(R.id.laneTime);
+            lapTime = (TextView) laneLayout.findViewById(R.id.laneLapTime);
+            laps = (TextView) laneLayout.findViewById(R.id.laneLaps);
+            startButton = (Button) laneLayout.findViewById(R.id.laneStartButton);
+            lapButton = (Button) laneLayout.findViewById(R.id.laneLapButton);
+            lapFormatter.setPrefix(lapTimePrefix);
+            startButton.setTag(this);
+            lapButton.setTag(this);
+            startButton.setOnClickListener(startStopListener);
+            lapButton.setOnClickListener(lapResetListener);
+            pressTimestamps.attach(startButton);
+            pressTimestamps.attach(lapButton);
+        }
+
+        private void bind(final int position) {
+            this.position = position;
+            label.setText(context.getString(R.string.lanes_lane_label, position + 1));
+            if (engine.isRunning(position)) {
+                startButton.setText(context.getString(R.string.stopwatch_button_stop));
+                lapButton.setText(context.getString(R.string.stopwatch_button_lap));
+            } else {
+                startButton.setText(context.getString(R.string.stopwatch_button_start));
+                lapButton.setText(context.getString(R.string.stopwatch_button_reset));
+            }
+            // laps only change on a press, which binds the row again
+            final LapSeries lapSeries = engine.getLaps(position);
+            if (lapSeries.size() == 0) {
+                laps.setVisibility(View.GONE);
+            } else {
+                laps.setText(context.getString(R.string.lanes_lap_summary, lapSeries.size(),
+                        lapsFormatter.formatToString(lapSeries.get(lapSeries.size() - 1)),
+                        lapsFormatter.formatToString(lapSeries.getBest())));
+                laps.setVisibility(View.VISIBLE);
+            }
+            shownUnits = -1;
+            shownLapUnits = -1;
+            update(TimeSources.get().elapsedRealtimeNanos());
+        }
+
+        private void update(final long now) {
+            final long elapsed = engine.getElapsed(position, now);
+            final long units = timeFormatter.toUnits(elapsed);
+            if (units != shownUnits) {
+                shownUnits = units;
+                time.setText(timeFormatter.getBuffer(), 0, timeFormatter.format(elapsed));
+            }
+            final long lapElapsed = engine.getLapElapsed(position, now);
+            final long lapUnits = lapFormatter.toUnits(lapElapsed);
+            if (lapUnits != shownLapUnits) {
+                shownLapUnits = lapUnits;
+                lapTime.setText(lapFormatter.getBuffer(), 0, lapFormatter.format(lapElapsed));
+            }
+        }
+    }
+
+    private class LanesAdapter extends BaseAdapter {
+
+        @Override
+        public int getCount() {
+            return engine.size();
+        }
+
+        @Override
+        public Integer getItem(final int position) {
+            return engine.getId(position);
+        }
+
+        @Override
+        public long getItemId(final int position) {
+            return engine.getId(position);
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(final int position, final View convertView, final ViewGroup parent) {
+            View laneLayout = convertView;
+            final LaneViewHolder holder;
+            if (laneLayout == null) {
+                laneLayout = LayoutInflater.from(context).inflate(R.layout.single_lane, parent, false);
+                holder = new LaneViewHolder(laneLayout);
+                laneLayout.setTag(holder);
+            } else {
+                holder = (LaneViewHolder) laneLayout.getTag();
+            }
+            holder.bind(position);
+            if (engine.isRunning(position)) {
+                // a running lane just scrolled into view, make sure it ticks
+                Ticker.get(context).schedule(tickListener, 0);
+            }
+            return laneLayout;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of lap times, in nanoseconds.  The file is a small header followed
+ * by fixed-size records, so adding a lap is a single seek and write no
+ * matter how many laps came before it.  Each record carries its own
+ * index and checksum; a record torn by a crash mid-write fails the check
+ * and is dropped (and truncated away) the next time the journal is loaded.
+ * Safe to use from the background writer as well as the main thread.
+ *
+ * @author dpadgett
+ */
+public class LapJournal {
+
+    private static final int MAGIC = 0x4c415053; // "LAPS"
+    // version 1 stored milliseconds, version 2 stores nanoseconds
+    private static final int VERSION_MILLIS = 1;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    // lap time (8), lap index (4), crc of the previous 12 bytes (4)
+    private static final int RECORD_SIZE = 16;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final File file;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+    // number of laps in the file, or -1 until the file has been scanned
+    private int count;
+
+    public LapJournal(final File file) {
+        this.file = file;
+        this.count = -1;
+    }
+
+    /** Returns whether the journal has ever been written. */
+    public synchronized boolean exists() {
+        return file.exists();
+    }
+
+    /** Returns the number of laps in the journal. */
+    public synchronized int size() {
+        if (count < 0) {
+            return load().length;
+        }
+        return count;
+    }
+
+    /**
+     * Reads every intact lap in the journal.  Anything after the first
+     * torn or corrupt record is discarded from the file as well, so the
+     * next append lands directly after the last good lap.  If the file
+     * can't be read to the end, the laps read so far are returned and the
+     * file is left as it is.
+     */
+    public synchronized long[] load() {
+        count = 0;
+        if (!file.exists()) {
+            return new long[0];
+        }
+        long[] laps = new long[(int) Math.max(0, (file.length() - HEADER_SIZE) / RECORD_SIZE)];
+        int version = VERSION;
+        boolean readable = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+            final int magic = in.readInt();
+            version = in.readInt();
+            if (magic != MAGIC || (version != VERSION && version != VERSION_MILLIS)) {
+                // not a journal we understand, start over
+                in.close();
+                in = null;
+                clear();
+                return new long[0];
+            }
+            final byte[] bytes = record.array();
+            while (count < laps.length) {
+                in.readFully(bytes);
+                record.clear();
+                final long lapTime = record.getLong();
+                final int index = record.getInt();
+                final int checksum = record.getInt();
+                if (index != count || checksum != checksum(bytes)) {
+                    break;
+                }
+                laps[count++] = lapTime;
+            }
+        } catch (final EOFException e) {
+            // torn record at the tail; everything before it is still good
+        } catch (final IOException e) {
+            // the rest of the file may be fine, so don't cut it off
+            e.printStackTrace();
+            readable = false;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+
+        if (readable && (count < laps.length || file.length() != offsetOf(count))) {
+            truncate(count);
+        }
+        if (count < laps.length) {
+            final long[] intact = new long[count];
+            System.arraycopy(laps, 0, intact, 0, count);
+            laps = intact;
+        }
+        if (version == VERSION_MILLIS) {
+            for (int idx = 0; idx < laps.length; idx++) {
+                laps[idx] *= NANOS_PER_MILLI;
+            }
+            if (readable) {
+                rewrite(laps);
+            }
+        }
+        if (!readable) {
+            // look again before the next append rather than write over laps we couldn't read
+            count = -1;
+        }
+        return laps;
+    }
+
+    /**
+     * Appends a single lap to the end of the journal.
+     */
+    public synchronized void append(final long lapTime) {
+        appendAll(new long[] { lapTime });
+    }
+
+    /**
+     * Appends the given laps to the end of the journal in one write.
+     */
+    public synchronized void appendAll(final long[] lapTimes) {
+        if (count < 0) {
+            load();
+            if (count < 0) {
+                // still can't read the journal, so leave it as it is
+                return;
+            }
+        }
+        RandomAccessFile out = null;
+        try {
+            out = open();
+            out.seek(offsetOf(count));
+            out.write(encode(lapTimes, count));
+            count += lapTimes.length;
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Removes every lap from the journal.  The file is replaced outright
+     * rather than cut short, so a damaged header is written afresh too.
+     */
+    public synchronized void clear() {
+        rewrite(new long[0]);
+    }
+
+    /**
+     * Replaces every lap in the journal with the given ones.  A crash part
+     * way leaves the journal as it was before.
+     *
+     * @return whether the new laps were written
+     */
+    public synchronized boolean replaceAll(final long[] lapTimes) {
+        return rewrite(lapTimes);
+    }
+
+    /**
+     * Deletes the journal file altogether.
+     */
+    public synchronized void delete() {
+        file.delete();
+        count = -1;
+    }
+
+    /**
+     * Replaces the journal with one in the current format holding the given
+     * laps.  It is written aside and renamed over the old one, so a crash
+     * part way leaves the old journal as it was.
+     */
+    private boolean rewrite(final long[] lapTimes) {
+        final File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            out.write(header.array());
+            out.write(encode(lapTimes, 0));
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Couldn't replace " + file);
+            }
+            count = lapTimes.length;
+            return true;
+        } catch (final IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            // still the old contents, so look again before the next append
+            count = -1;
+            return false;
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+    /** The records for the given laps, numbered from the given index. */
+    private byte[] encode(final long[] lapTimes, final int firstIndex) {
+        final ByteBuffer buffer = ByteBuffer.allocate(lapTimes.length * RECORD_SIZE);
+        for (int idx = 0; idx < lapTimes.length; idx++) {
+            record.clear();
+            record.putLong(lapTimes[idx]);
+            record.putInt(firstIndex + idx);
+            record.putInt(checksum(record.array()));
+            buffer.put(record.array());
+        }
+        return buffer.array();
+    }
+
+    private void truncate(final int laps) {
+        RandomAccessFile out = null;
+        try {
+            out = open();
+            out.setLength(offsetOf(laps));
+            count = laps;
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+    /** Opens the journal for writing, laying down the header if it is new. */
+    private RandomAccessFile open() throws IOException {
+        final boolean isNew = !file.exists() || file.length() < HEADER_SIZE;
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        if (isNew) {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+        return out;
+    }
+
+    private int checksum(final byte[] bytes) {
+        crc.reset();
+        crc.update(bytes, 0, RECORD_SIZE - 4);
+        return (int) crc.getValue();
+    }
+
+    private static long offsetOf(final int lap) {
+        return HEADER_SIZE + (long) lap * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,139 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+/**
+ * Growable series of lap times backed by a primitive array, which keeps
+ * its summary statistics up to date as laps are added.  Every aggregate
+ * is maintained in constant time per lap; nothing ever rescans the
+ * history.
+ *
+ * @author dpadgett
+ */
+public class LapSeries {
+
+    private final int movingWindow;
+    private long[] laps;
+    private int count;
+
+    private int bestIndex;
+    private int worstIndex;
+    // Welford's running mean and sum of squared differences from it
+    private double mean;
+    private double m2;
+    private long movingSum;
+
+    public LapSeries(final int movingWindow) {
+        this.movingWindow = movingWindow;
+        this.laps = new long[16];
+        clear();
+    }
+
+    public void add(final long lapTime) {
+        if (count == laps.length) {
+            final long[] grown = new long[laps.length * 2];
+            System.arraycopy(laps, 0, grown, 0, count);
+            laps = grown;
+        }
+        laps[count] = lapTime;
+
+        if (count == 0 || lapTime < laps[bestIndex]) {
+            bestIndex = count;
+        }
+        if (count == 0 || lapTime > laps[worstIndex]) {
+            worstIndex = count;
+        }
+
+        final double delta = lapTime - mean;
+        mean += delta / (count + 1);
+        m2 += delta * (lapTime - mean);
+
+        movingSum += lapTime;
+        if (count >= movingWindow) {
+            movingSum -= laps[count - movingWindow];
+        }
+        count++;
+    }
+
+    public void clear() {
+        count = 0;
+        bestIndex = -1;
+        worstIndex = -1;
+        mean = 0;
+        m2 = 0;
+        movingSum = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long get(final int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Lap " + index + " of " + count);
+        }
+        return laps[index];
+    }
+
+    /** Returns a copy of every lap, oldest first. */
+    public long[] toArray() {
+        final long[] copy = new long[count];
+        System.arraycopy(laps, 0, copy, 0, count);
+        return copy;
+    }
+
+    /** Index of the fastest lap, or -1 if there are no laps. */
+    public int getBestIndex() {
+        return bestIndex;
+    }
+
+    /** Index of the slowest lap, or -1 if there are no laps. */
+    public int getWorstIndex() {
+        return worstIndex;
+    }
+
+    public long getBest() {
+        return count == 0 ? 0 : laps[bestIndex];
+    }
+
+    public long getWorst() {
+        return count == 0 ? 0 : laps[worstIndex];
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    /** Sample variance of the lap times, or 0 with fewer than two laps. */
+    public double getVariance() {
+        return count < 2 ? 0 : m2 / (count - 1);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /** Number of most recent laps averaged by {@link #getMovingAverage()}. */
+    public int getMovingWindow() {
+        return movingWindow;
+    }
+
+    /** Average of the last {@link #getMovingWindow()} laps, or of every lap if there are fewer. */
+    public double getMovingAverage() {
+        return count == 0 ? 0 : movingSum / (double) Math.min(count, movingWindow);
+    }
+}
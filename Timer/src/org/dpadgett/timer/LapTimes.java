@@ -16,178 +16,255 @@
 
 package org.dpadgett.timer;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
 
-import org.dpadgett.compat.LinearLayout;
-import org.dpadgett.compat.LinearLayout.OnLayoutChangeListener;
-import org.dpadgett.compat.Space;
+import org.dpadgett.widget.DurationFormatter;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.ColorStateList;
 import android.view.LayoutInflater;
 import android.view.View;
-import android.view.ViewGroup.LayoutParams;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
-import android.widget.ScrollView;
 import android.widget.TextView;
 
 /**
  * Class to encapsulate the functionality and logic for the lap times
- * list.
- * 
+ * list.  Rows are recycled by the backing {@link ListView}, so only the
+ * visible laps ever have views.  Also shows the running lap statistics
+ * and highlights the best and worst laps.
+ *
  * @author dpadgett
  */
 public class LapTimes {
 
-    private final ScrollView scrollView;
-    private final LinearLayout lapTimesView;
-    private final List<Long> lapTimes;
-    private final OnLayoutChangeListener bottomScroller;
-    private final Context context;
-    private int lastLapTimesViewHeight;
+    private static final int MOVING_AVERAGE_LAPS = 5;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final DurationFormatter.Precision PRECISION = DurationFormatter.Precision.MILLISECONDS;
 
-    public LapTimes(final ScrollView scrollView) {
-        this.scrollView = scrollView;
-        this.lapTimesView = (LinearLayout) scrollView.findViewById(R.id.lapTimesView);
-        this.context = scrollView.getContext();
+    private final ListView lapTimesView;
+    private final TextView lapStatsView;
+    private final LapSeries lapTimes;
+    private final LapTimesAdapter adapter;
+    private final LapJournal journal;
+    private final StatePersister persister;
+    private final DurationFormatter statsFormatter = new DurationFormatter(PRECISION, false);
+    private final Context context;
+    private final String lapLabelPrefix;
+    private final int bestColor;
+    private final int worstColor;
+    private boolean loaded;
 
-        lastLapTimesViewHeight = lapTimesView.getMeasuredHeight();
-        bottomScroller = new OnLayoutChangeListener() {
+    public LapTimes(final ListView lapTimesView, final TextView lapStatsView) {
+        this.lapTimesView = lapTimesView;
+        this.lapStatsView = lapStatsView;
+        this.context = lapTimesView.getContext();
+        this.lapLabelPrefix = context.getString(R.string.lap_times_lap_label) + " ";
+        this.bestColor = context.getResources().getColor(R.color.lap_time_best);
+        this.worstColor = context.getResources().getColor(R.color.lap_time_worst);
 
-            @Override
-            public void onLayoutChange(final View v,
-                    final int left,
-                    final int top,
-                    final int right,
-                    final int bottom,
-                    final int oldLeft,
-                    final int oldTop,
-                    final int oldRight,
-                    final int oldBottom) {
-                if (v.getMeasuredHeight() != lastLapTimesViewHeight) {
-                    lastLapTimesViewHeight = v.getMeasuredHeight();
-                    LapTimes.this.scrollView.fullScroll(View.FOCUS_DOWN);
-                }
-            }
-        };
-        lapTimesView.addOnLayoutChangeListener(bottomScroller);
-        lapTimesView.setDividerDrawable(new ListView(lapTimesView.getContext()).getDivider());
-        lapTimes = new ArrayList<Long>();
+        lapTimes = new LapSeries(MOVING_AVERAGE_LAPS);
+        journal = new LapJournal(new File(context.getFilesDir(), "Stopwatch.laps"));
+        persister = StatePersister.get(context);
+        adapter = new LapTimesAdapter();
+        // keeps the newest lap in view as laps are added
+        lapTimesView.setTranscriptMode(ListView.TRANSCRIPT_MODE_ALWAYS_SCROLL);
+        lapTimesView.setAdapter(adapter);
     }
 
     /**
      * Add this lap time to the list of lap times.
-     * 
+     *
      * @param lapTime
-     *            the time to add
+     *            the time to add, in nanoseconds
      */
     public void add(final long lapTime) {
-        // unhack
-        if (lapTimesView.getChildCount() > 0) {
-            lapTimesView.removeViewAt(lapTimesView.getChildCount() - 1);
-        }
-
-        final android.widget.LinearLayout lapLayout = (android.widget.LinearLayout) LayoutInflater.from(
-                lapTimesView.getContext()).inflate(R.layout.single_lap_time, lapTimesView, false);
-
-        final TextView lapLabel = (TextView) lapLayout.findViewById(R.id.lapLabel);
-        lapLabel.setText(context.getString(R.string.lap_times_lap_label) + " " + (lapTimes.size() + 1));
-
-        final TextView lapTimeView = (TextView) lapLayout.findViewById(R.id.lapTime);
-        lapTimeView.setText(getTimerText(lapTime));
-
-        lapTimesView.addView(lapLayout);
-
-        // hack to get it to draw the lower divider
-        final Space space = new Space(lapTimesView.getContext());
-        space.setLayoutParams(new LayoutParams(LayoutParams.FILL_PARENT, 1));
-
-        lapTimesView.addView(space);
         lapTimes.add(lapTime);
-
-        final SharedPreferences.Editor prefs = context.getSharedPreferences("Stopwatch", Context.MODE_PRIVATE).edit();
-        prefs.putLong("lapTime" + (lapTimes.size() - 1), lapTime);
-        prefs.putInt("lapTimesCount", lapTimes.size());
-        prefs.commit();
+        adapter.notifyDataSetChanged();
+        updateStats();
+        persister.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.append(lapTime);
+            }
+        });
     }
 
     /**
      * Save the state of this lap times list.
      */
     public void saveState() {
-        final SharedPreferences.Editor prefs = context.getSharedPreferences("Stopwatch", Context.MODE_PRIVATE).edit();
-        prefs.putFloat("lapTimesScrollPosition", (scrollView.getScrollY() + scrollView.getMeasuredHeight())
-                / (float) lapTimesView.getMeasuredHeight());
+        final SharedPreferences.Editor prefs = persister.edit("Stopwatch");
+        final View firstVisible = lapTimesView.getChildAt(0);
+        prefs.putInt("lapTimesFirstVisiblePosition", lapTimesView.getFirstVisiblePosition());
+        prefs.putInt("lapTimesFirstVisibleTop", firstVisible == null ? 0 : firstVisible.getTop());
         prefs.commit();
     }
 
     /**
-     * Restore this lap times list to a previously saved state.
-     * 
+     * Restore this lap times list to a previously saved state.  The lap
+     * times themselves are only read the first time, since this list is
+     * the one which wrote them.
+     *
      * @param savedInstanceState
      */
     public void restoreState(final SharedPreferences prefs) {
-        if (bottomScroller != null) {
-            lapTimesView.removeOnLayoutChangeListener(bottomScroller);
+        if (!loaded) {
+            // an earlier list may still have laps queued for the journal
+            persister.flush();
+            if (!journal.exists()) {
+                migrateFromPreferences(prefs);
+            }
+            for (final long lapTime : journal.load()) {
+                lapTimes.add(lapTime);
+            }
+            loaded = true;
+            adapter.notifyDataSetChanged();
+            updateStats();
         }
 
-        lapTimes.clear();
-        lapTimesView.removeAllViews();
+        if (prefs.contains("lapTimesFirstVisiblePosition")) {
+            final int position = prefs.getInt("lapTimesFirstVisiblePosition", 0);
+            final int top = prefs.getInt("lapTimesFirstVisibleTop", 0);
+            lapTimesView.post(new Runnable() {
+                @Override
+                public void run() {
+                    lapTimesView.setSelectionFromTop(position, top);
+                }
+            });
+        }
+    }
 
-        final int lapTimesCount = prefs.getInt("lapTimesCount", 0);
+    public int size() {
+        return lapTimes.size();
+    }
 
-        for (int idx = 0; idx < lapTimesCount; idx++) {
-            if (prefs.contains("lapTime" + idx)) {
-                final long lapTime = prefs.getLong("lapTime" + idx, 0);
-                // add it to the list of lap times
-                add(lapTime);
-            }
-        }
+    /** Returns a copy of every lap time, in nanoseconds. */
+    public long[] toArray() {
+        return lapTimes.toArray();
+    }
 
-        final float scrollPosition = prefs.getFloat("lapTimesScrollPosition", 0);
-        scrollView.post(new Runnable() {
+    /**
+     * Removes all lap times in the list.
+     */
+    public void clear() {
+        persister.execute(new Runnable() {
             @Override
             public void run() {
-                scrollView.scrollTo(0,
-                        (int) (scrollPosition * lapTimesView.getMeasuredHeight()) - scrollView.getMeasuredHeight());
-                lapTimesView.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        lastLapTimesViewHeight = lapTimesView.getMeasuredHeight();
-                        if (bottomScroller != null) {
-                            lapTimesView.addOnLayoutChangeListener(bottomScroller);
-                        }
-                    }
-                });
+                journal.clear();
             }
         });
+        lapTimes.clear();
+        adapter.notifyDataSetChanged();
+        updateStats();
+    }
+
+    private void updateStats() {
+        if (lapTimes.size() == 0) {
+            lapStatsView.setVisibility(View.GONE);
+            return;
+        }
+        lapStatsView.setText(context.getString(R.string.lap_times_stats,
+                statsFormatter.formatToString(lapTimes.getBest()),
+                statsFormatter.formatToString(lapTimes.getWorst()),
+                statsFormatter.formatToString(Math.round(lapTimes.getMean())),
+                statsFormatter.formatToString(Math.round(lapTimes.getStandardDeviation())),
+                Math.min(lapTimes.size(), lapTimes.getMovingWindow()),
+                statsFormatter.formatToString(Math.round(lapTimes.getMovingAverage()))));
+        lapStatsView.setVisibility(View.VISIBLE);
     }
 
     /**
-     * Removes all lap times in the list.
+     * Moves lap times saved by older versions, one preference key per lap,
+     * into the lap journal.
      */
-    public void clear() {
-        lapTimesView.removeAllViews();
+    private void migrateFromPreferences(final SharedPreferences prefs) {
+        final int lapTimesCount = prefs.getInt("lapTimesCount", 0);
+        final long[] oldLapTimes = new long[lapTimesCount];
+        int found = 0;
+        for (int idx = 0; idx < lapTimesCount; idx++) {
+            if (prefs.contains("lapTime" + idx)) {
+                // these were saved in milliseconds
+                oldLapTimes[found++] = prefs.getLong("lapTime" + idx, 0) * NANOS_PER_MILLI;
+            }
+        }
+        final long[] migrated = new long[found];
+        System.arraycopy(oldLapTimes, 0, migrated, 0, found);
+        // creates the journal even if there were no laps, so this only happens once;
+        // the old keys stay until the laps are safely in it
+        if (!journal.replaceAll(migrated)) {
+            return;
+        }
 
-        final SharedPreferences.Editor prefs = context.getSharedPreferences("Stopwatch", Context.MODE_PRIVATE).edit();
-        for (int idx = 0; idx < lapTimes.size(); idx++) {
-            prefs.remove("lapTime" + idx);
+        final SharedPreferences.Editor editor = persister.edit("Stopwatch");
+        for (int idx = 0; idx < lapTimesCount; idx++) {
+            editor.remove("lapTime" + idx);
         }
-        prefs.putInt("lapTimesCount", 0);
-        prefs.commit();
+        editor.remove("lapTimesCount");
+        editor.commit();
+    }
 
-        lapTimes.clear();
+    private static final class LapViewHolder {
+        private final TextView lapLabel;
+        private final TextView lapTime;
+        private final ColorStateList defaultColors;
+        // each row shows its own buffer, so rebinding a recycled row allocates nothing
+        private final DurationFormatter formatter = new DurationFormatter(PRECISION, false);
+
+        private LapViewHolder(final View lapLayout) {
+            lapLabel = (TextView) lapLayout.findViewById(R.id.lapLabel);
+            lapTime = (TextView) lapLayout.findViewById(R.id.lapTime);
+            defaultColors = lapTime.getTextColors();
+        }
     }
 
-    private static String getTimerText(long elapsedTime) {
-        final long millis = elapsedTime % 1000;
-        elapsedTime /= 1000;
-        final long secs = elapsedTime % 60;
-        elapsedTime /= 60;
-        final long mins = elapsedTime % 60;
-        elapsedTime /= 60;
-        final long hours = elapsedTime % 60;
-        return String.format("%02d:%02d:%02d.%03d", hours, mins, secs, millis);
+    private class LapTimesAdapter extends BaseAdapter {
+
+        @Override
+        public int getCount() {
+            return lapTimes.size();
+        }
+
+        @Override
+        public Long getItem(final int position) {
+            return lapTimes.get(position);
+        }
+
+        @Override
+        public long getItemId(final int position) {
+            return position;
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(final int position, final View convertView, final ViewGroup parent) {
+            View lapLayout = convertView;
+            final LapViewHolder holder;
+            if (lapLayout == null) {
+                lapLayout = LayoutInflater.from(context).inflate(R.layout.single_lap_time, parent, false);
+                holder = new LapViewHolder(lapLayout);
+                lapLayout.setTag(holder);
+            } else {
+                holder = (LapViewHolder) lapLayout.getTag();
+            }
+
+            holder.lapLabel.setText(lapLabelPrefix + (position + 1));
+            holder.lapTime.setText(holder.formatter.getBuffer(), 0, holder.formatter.format(lapTimes.get(position)));
+            // with a single lap it's both best and worst, so don't bother
+            if (lapTimes.size() > 1 && position == lapTimes.getBestIndex()) {
+                holder.lapTime.setTextColor(bestColor);
+            } else if (lapTimes.size() > 1 && position == lapTimes.getWorstIndex()) {
+                holder.lapTime.setTextColor(worstColor);
+            } else {
+                holder.lapTime.setTextColor(holder.defaultColors);
+            }
+            return lapLayout;
+        }
     }
 }
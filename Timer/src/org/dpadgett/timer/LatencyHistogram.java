@@ -0,0 +1,159 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Counts how late something happens, such as an alarm going off past the
+ * deadline it was set for, in buckets which grow roughly geometrically
+ * from a few milliseconds to minutes.  That's the range between a device which is awake and one
+ * where the system or a battery saver has held the alarm back.  The
+ * counts are persisted, so they build up across runs.
+ *
+ * There is one histogram per thing being measured, named by one of the
+ * constants here.
+ *
+ * @author dpadgett
+ */
+public class LatencyHistogram {
+
+    /** How long after its deadline each countdown alarm went off. */
+    public static final String ALARM_LATENCY = "AlarmLatency";
+    /** How long after the alarm went off its sound started. */
+    public static final String SOUND_LATENCY = "SoundLatency";
+    /** How long after a button went down its click was handled. */
+    public static final String INPUT_LATENCY = "InputLatency";
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    // upper bound of each bucket, in milliseconds; the last one catches the rest
+    private static final long[] BUCKET_UPPER_MILLIS = {
+        10, 50, 100, 250, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000, Long.MAX_VALUE,
+    };
+
+    private static final Map<String, LatencyHistogram> instances = new HashMap<String, LatencyHistogram>();
+
+    private final StatePersister persister;
+    private final String prefsName;
+    private final long[] counts = new long[BUCKET_UPPER_MILLIS.length];
+    private long count;
+    private long totalMillis;
+    private long maxMillis;
+
+    private LatencyHistogram(final Context context, final String prefsName) {
+        this.persister = StatePersister.get(context);
+        this.prefsName = prefsName;
+        restoreState(persister.getSharedPreferences(prefsName));
+    }
+
+    /** Returns the histogram with the given name, which is also where it is saved. */
+    public static synchronized LatencyHistogram get(final Context context, final String name) {
+        LatencyHistogram histogram = instances.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram(context.getApplicationContext(), name);
+            instances.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /** Records one event which happened the given time late, in nanoseconds. */
+    public synchronized void record(final long latencyNanos) {
+        // the alarm works in whole milliseconds, so it can be a hair early
+        final long latencyMillis = Math.max(0, latencyNanos / NANOS_PER_MILLI);
+        int bucket = 0;
+        while (latencyMillis >= BUCKET_UPPER_MILLIS[bucket]) {
+            bucket++;
+        }
+        counts[bucket]++;
+        count++;
+        totalMillis += latencyMillis;
+        maxMillis = Math.max(maxMillis, latencyMillis);
+
+        final SharedPreferences.Editor prefs = persister.edit(prefsName);
+        prefs.putLong("bucket" + bucket, counts[bucket]);
+        prefs.putLong("count", count);
+        prefs.putLong("totalMillis", totalMillis);
+        prefs.putLong("maxMillis", maxMillis);
+        prefs.commit();
+    }
+
+    public synchronized void clear() {
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] = 0;
+        }
+        count = 0;
+        totalMillis = 0;
+        maxMillis = 0;
+        persister.edit(prefsName).clear().commit();
+    }
+
+    public int getBucketCount() {
+        return BUCKET_UPPER_MILLIS.length;
+    }
+
+    /** Upper bound of the given bucket, exclusive, or Long.MAX_VALUE for the last one. */
+    public long getBucketUpperMillis(final int bucket) {
+        return BUCKET_UPPER_MILLIS[bucket];
+    }
+
+    public synchronized long getBucket(final int bucket) {
+        return counts[bucket];
+    }
+
+    /** Number of alarms recorded. */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMeanMillis() {
+        return count == 0 ? 0 : totalMillis / count;
+    }
+
+    public synchronized long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Upper bound of the bucket holding the given fraction of alarms, so
+     * at least that many went off no later than this.  Returns the worst
+     * latency seen if that's in the last bucket.
+     */
+    public synchronized long getPercentileMillis(final double fraction) {
+        final long wanted = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length - 1; bucket++) {
+            seen += counts[bucket];
+            if (seen >= wanted) {
+                return Math.min(BUCKET_UPPER_MILLIS[bucket], maxMillis);
+            }
+        }
+        return maxMillis;
+    }
+
+    private void restoreState(final SharedPreferences prefs) {
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] = prefs.getLong("bucket" + bucket, 0L);
+        }
+        count = prefs.getLong("count", 0L);
+        totalMillis = prefs.getLong("totalMillis", 0L);
+        maxMillis = prefs.getLong("maxMillis", 0L);
+    }
+}
@@ -0,0 +1,95 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Remembers when a view was actually pressed, so its click handler can
+ * stamp the action with the time of the touch-down (or key-down) event
+ * rather than the time the click finally got dispatched.  Clicks fire on
+ * touch-up, behind whatever else is queued on the main thread, so the
+ * difference is real on slow devices.  It is recorded as the input
+ * latency, which the Diagnostics screen shows.
+ *
+ * @author dpadgett
+ */
+class PressTimestamps implements View.OnTouchListener, View.OnKeyListener {
+
+    private final TimeSource timeSource;
+    private final LatencyHistogram latencies;
+
+    private View pressedView;
+    private long pressedAt;
+
+    PressTimestamps(final TimeSource timeSource, final LatencyHistogram latencies) {
+        this.timeSource = timeSource;
+        this.latencies = latencies;
+    }
+
+    /** Starts watching presses of the given view. */
+    void attach(final View view) {
+        view.setOnTouchListener(this);
+        view.setOnKeyListener(this);
+    }
+
+    @Override
+    public boolean onTouch(final View view, final MotionEvent event) {
+        switch (event.getAction()) {
+        case MotionEvent.ACTION_DOWN:
+            pressed(view, event.getEventTime());
+            break;
+        case MotionEvent.ACTION_CANCEL:
+            pressedView = null;
+            break;
+        }
+        // let the view handle the click itself
+        return false;
+    }
+
+    @Override
+    public boolean onKey(final View view, final int keyCode, final KeyEvent event) {
+        if (event.getAction() == KeyEvent.ACTION_DOWN && event.getRepeatCount() == 0
+                && (keyCode == KeyEvent.KEYCODE_DPAD_CENTER || keyCode == KeyEvent.KEYCODE_ENTER)) {
+            pressed(view, event.getEventTime());
+        }
+        return false;
+    }
+
+    private void pressed(final View view, final long eventUptimeMillis) {
+        pressedView = view;
+        pressedAt = TimeSources.uptimeToElapsedRealtimeNanos(eventUptimeMillis, timeSource);
+    }
+
+    /**
+     * Returns when the click on the given view being handled now was
+     * started, in elapsed realtime nanoseconds.  Falls back to the current
+     * time for clicks with no matching press, e.g. from accessibility.
+     */
+    long consume(final View view) {
+        final long now = timeSource.elapsedRealtimeNanos();
+        if (pressedView != view || pressedAt > now) {
+            pressedView = null;
+            return now;
+        }
+        pressedView = null;
+        latencies.record(now - pressedAt);
+        return pressedAt;
+    }
+}
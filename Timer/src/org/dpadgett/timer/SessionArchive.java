@@ -0,0 +1,408 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+
+/**
+ * On-device store of finished stopwatch sessions.  Each session is one
+ * fixed-size record in an index file, pointing at its laps in a separate
+ * data file, so any session can be found with a single seek and listing
+ * sessions never touches their laps.  Sessions are also kept in order of
+ * date and of duration; those orderings are small files of record
+ * numbers, held in memory as int arrays.
+ *
+ * @author dpadgett
+ */
+public class SessionArchive {
+
+    public enum Order {
+        /** Newest first. */
+        DATE,
+        /** Shortest first. */
+        DURATION
+    }
+
+    /** One archived session, minus its laps; reused when paging. */
+    public static final class Session {
+        private int record;
+        private long startWallMillis;
+        private long totalNanos;
+        private long lapsOffset;
+        private int lapCount;
+
+        public int getRecord() {
+            return record;
+        }
+
+        /** When the session was started, in wall clock milliseconds. */
+        public long getStartWallMillis() {
+            return startWallMillis;
+        }
+
+        /** Total time on the stopwatch, in nanoseconds. */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public int getLapCount() {
+            return lapCount;
+        }
+    }
+
+    private static final int MAGIC = 0x53455353; // "SESS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // start time (8), total (8), laps offset (8), lap count (4), crc of the previous 28 bytes (4)
+    private static final int RECORD_SIZE = 32;
+
+    private static SessionArchive instance;
+
+    private final File indexFile;
+    private final File lapsFile;
+    private final File byDateFile;
+    private final File byDurationFile;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    // number of sessions, or -1 until the index has been scanned
+    private int count = -1;
+    // record numbers in each order, and the key each is sorted by
+    private int[] byDate;
+    private long[] dateKeys;
+    private int[] byDuration;
+    private long[] durationKeys;
+    private RandomAccessFile reader;
+
+    SessionArchive(final File dir) {
+        this.indexFile = new File(dir, "Stopwatch.sessions");
+        this.lapsFile = new File(dir, "Stopwatch.sessions.laps");
+        this.byDateFile = new File(dir, "Stopwatch.sessions.bydate");
+        this.byDurationFile = new File(dir, "Stopwatch.sessions.byduration");
+    }
+
+    public static synchronized SessionArchive get(final Context context) {
+        if (instance == null) {
+            instance = new SessionArchive(context.getApplicationContext().getFilesDir());
+        }
+        return instance;
+    }
+
+    public synchronized int size() {
+        open();
+        return count;
+    }
+
+    /** Returns the record number of the session at the given rank in the given order. */
+    public synchronized int recordAt(final Order order, final int rank) {
+        open();
+        return order == Order.DATE ? byDate[count - 1 - rank] : byDuration[rank];
+    }
+
+    /**
+     * Reads consecutive sessions of the given order, starting at the given
+     * rank, into the given array.  Returns how many were read, which is
+     * fewer than asked for at the end of the archive.
+     */
+    public synchronized int readPage(final Order order, final int firstRank, final Session[] page) {
+        open();
+        int read = 0;
+        try {
+            for (; read < page.length && firstRank + read < count; read++) {
+                if (page[read] == null) {
+                    page[read] = new Session();
+                }
+                readRecord(recordAt(order, firstRank + read), page[read]);
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+        return read;
+    }
+
+    /** Reads the laps of a single session, in nanoseconds. */
+    public synchronized long[] readLaps(final Session session) {
+        final long[] laps = new long[session.lapCount];
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(lapsFile, "r");
+            final byte[] bytes = new byte[laps.length * 8];
+            in.seek(session.lapsOffset);
+            in.readFully(bytes);
+            ByteBuffer.wrap(bytes).asLongBuffer().get(laps);
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        return laps;
+    }
+
+    /**
+     * Archives a finished session.  Does file I/O, so call it off the main
+     * thread.
+     */
+    public synchronized void append(final long startWallMillis, final long totalNanos, final long[] laps) {
+        open();
+        closeReader();
+        RandomAccessFile out = null;
+        try {
+            // the laps go first, so the index never points at laps which aren't there
+            out = new RandomAccessFile(lapsFile, "rw");
+            final long lapsOffset = out.length();
+            final ByteBuffer lapBytes = ByteBuffer.allocate(laps.length * 8);
+            for (final long lapTime : laps) {
+                lapBytes.putLong(lapTime);
+            }
+            out.seek(lapsOffset);
+            out.write(lapBytes.array());
+            out.close();
+
+            out = new RandomAccessFile(indexFile, "rw");
+            if (out.length() < HEADER_SIZE) {
+                out.setLength(0);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            record.clear();
+            record.putLong(startWallMillis);
+            record.putLong(totalNanos);
+            record.putLong(lapsOffset);
+            record.putInt(laps.length);
+            record.putInt(checksum(record.array()));
+            out.seek(offsetOf(count));
+            out.write(record.array());
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+
+        final int newRecord = count++;
+        byDate = insert(byDate, dateKeys, newRecord, startWallMillis);
+        dateKeys = insertKey(dateKeys, startWallMillis);
+        byDuration = insert(byDuration, durationKeys, newRecord, totalNanos);
+        durationKeys = insertKey(durationKeys, totalNanos);
+        writeOrder(byDateFile, byDate);
+        writeOrder(byDurationFile, byDuration);
+    }
+
+    /**
+     * Scans the index the first time it is needed, dropping any torn
+     * record at the end, and loads or rebuilds both orderings.
+     */
+    private void open() {
+        if (count >= 0) {
+            return;
+        }
+        count = 0;
+        final long length = indexFile.exists() ? indexFile.length() : 0;
+        final int records = (int) Math.max(0, (length - HEADER_SIZE) / RECORD_SIZE);
+        final long[] starts = new long[records];
+        final long[] totals = new long[records];
+        DataInputStream in = null;
+        try {
+            if (records > 0) {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 8192));
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    final byte[] bytes = record.array();
+                    while (count < records) {
+                        in.readFully(bytes);
+                        record.clear();
+                        starts[count] = record.getLong();
+                        totals[count] = record.getLong();
+                        record.getLong();
+                        record.getInt();
+                        if (record.getInt() != checksum(bytes)) {
+                            break;
+                        }
+                        count++;
+                    }
+                }
+            }
+        } catch (final EOFException e) {
+            // torn record at the tail; everything before it is still good
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        if (length > HEADER_SIZE && length != offsetOf(count)) {
+            truncate(count);
+        }
+
+        byDate = readOrder(byDateFile);
+        byDuration = readOrder(byDurationFile);
+        if (byDate.length != count || byDuration.length != count) {
+            // we died between archiving a session and updating the orderings
+            byDate = new int[0];
+            byDuration = new int[0];
+            dateKeys = new long[0];
+            durationKeys = new long[0];
+            for (int idx = 0; idx < count; idx++) {
+                byDate = insert(byDate, dateKeys, idx, starts[idx]);
+                dateKeys = insertKey(dateKeys, starts[idx]);
+                byDuration = insert(byDuration, durationKeys, idx, totals[idx]);
+                durationKeys = insertKey(durationKeys, totals[idx]);
+            }
+            writeOrder(byDateFile, byDate);
+            writeOrder(byDurationFile, byDuration);
+        } else {
+            dateKeys = keysOf(byDate, starts);
+            durationKeys = keysOf(byDuration, totals);
+        }
+    }
+
+    private void readRecord(final int recordNumber, final Session session) throws IOException {
+        if (reader == null) {
+            reader = new RandomAccessFile(indexFile, "r");
+        }
+        reader.seek(offsetOf(recordNumber));
+        reader.readFully(record.array());
+        record.clear();
+        session.record = recordNumber;
+        session.startWallMillis = record.getLong();
+        session.totalNanos = record.getLong();
+        session.lapsOffset = record.getLong();
+        session.lapCount = record.getInt();
+    }
+
+    /** Returns a copy of the given order with the record inserted where its key belongs. */
+    private static int[] insert(final int[] order, final long[] keys, final int recordNumber, final long key) {
+        final int at = insertionPoint(keys, order.length, key);
+        final int[] grown = new int[order.length + 1];
+        System.arraycopy(order, 0, grown, 0, at);
+        grown[at] = recordNumber;
+        System.arraycopy(order, at, grown, at + 1, order.length - at);
+        return grown;
+    }
+
+    /** Same as {@link #insert}, for the matching array of keys; call it after, with the old keys. */
+    private static long[] insertKey(final long[] keys, final long key) {
+        final int at = insertionPoint(keys, keys.length, key);
+        final long[] grown = new long[keys.length + 1];
+        System.arraycopy(keys, 0, grown, 0, at);
+        grown[at] = key;
+        System.arraycopy(keys, at, grown, at + 1, keys.length - at);
+        return grown;
+    }
+
+    /** First position whose key is greater than the given one, so equal keys stay in archive order. */
+    private static int insertionPoint(final long[] keys, final int length, final long key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long[] keysOf(final int[] order, final long[] keysByRecord) {
+        final long[] keys = new long[order.length];
+        for (int idx = 0; idx < order.length; idx++) {
+            keys[idx] = keysByRecord[order[idx]];
+        }
+        return keys;
+    }
+
+    private int[] readOrder(final File file) {
+        if (!file.exists()) {
+            return new int[0];
+        }
+        final int[] order = new int[(int) (file.length() / 4)];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+            for (int idx = 0; idx < order.length; idx++) {
+                order[idx] = in.readInt();
+                if (order[idx] < 0 || order[idx] >= count) {
+                    return new int[0];
+                }
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return new int[0];
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        return order;
+    }
+
+    /** Replaces the given ordering file in one rename, so it is never seen half written. */
+    private void writeOrder(final File file, final int[] order) {
+        final File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            final ByteBuffer bytes = ByteBuffer.allocate(order.length * 4);
+            bytes.asIntBuffer().put(order);
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.write(bytes.array());
+            out.close();
+            out = null;
+            temp.renameTo(file);
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+    private void truncate(final int records) {
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(indexFile, "rw");
+            out.setLength(records == 0 ? 0 : offsetOf(records));
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+    private void closeReader() {
+        Closeables.closeQuietly(reader);
+        reader = null;
+    }
+
+    private int checksum(final byte[] bytes) {
+        crc.reset();
+        crc.update(bytes, 0, RECORD_SIZE - 4);
+        return (int) crc.getValue();
+    }
+
+    private static long offsetOf(final int recordNumber) {
+        return HEADER_SIZE + (long) recordNumber * RECORD_SIZE;
+    }
+}
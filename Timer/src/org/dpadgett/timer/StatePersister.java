@@ -0,0 +1,301 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Central write-behind store for all persisted UI state.  Edits made
+ * through {@link #edit(String)} are merged in memory and written out
+ * shortly afterwards by a single background writer, so a burst of saves
+ * costs one preferences commit per file instead of one each, and none of
+ * them block the main thread.  {@link #flush()} forces everything to disk
+ * and waits for it, for the points where state must be durable (pausing,
+ * or an alarm about to go off).
+ *
+ * @author dpadgett
+ */
+public final class StatePersister {
+
+    private static final long WRITE_DELAY_MILLIS = 500;
+    private static final Object REMOVED = new Object();
+
+    private static StatePersister instance;
+
+    private final Context context;
+    private final ScheduledExecutorService writer;
+    // pending edits by preferences file name, guarded by this
+    private final Map<String, PendingEdits> pending = new HashMap<String, PendingEdits>();
+    // files whose edits the writer has taken but not yet committed, guarded by this
+    private final Set<String> writing = new HashSet<String>();
+    private boolean writeScheduled;
+    private volatile Thread writerThread;
+
+    private final AtomicLong writesRequested = new AtomicLong();
+    private final AtomicLong writesPerformed = new AtomicLong();
+
+    private StatePersister(final Context context) {
+        this.context = context;
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "StatePersister");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                writerThread = thread;
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized StatePersister get(final Context context) {
+        if (instance == null) {
+            instance = new StatePersister(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns an editor for the given preferences file.  Its commit() and
+     * apply() both only queue the changes, and always succeed.
+     */
+    public SharedPreferences.Editor edit(final String name) {
+        return new BatchedEditor(name);
+    }
+
+    /**
+     * Returns the given preferences file, after writing out any changes
+     * still pending for it so they can be read back.
+     */
+    public SharedPreferences getSharedPreferences(final String name) {
+        final boolean hasPending;
+        synchronized (this) {
+            // edits being written aren't in the preferences until their commit
+            hasPending = pending.containsKey(name) || writing.contains(name);
+        }
+        if (hasPending) {
+            flush();
+        }
+        return context.getSharedPreferences(name, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Runs the given task on the writer thread, after every edit queued
+     * before it.  For state which doesn't live in preferences.
+     */
+    public void execute(final Runnable task) {
+        writer.execute(task);
+    }
+
+    /**
+     * Writes out everything queued so far, and blocks until it is on disk.
+     */
+    public void flush() {
+        if (Thread.currentThread() == writerThread) {
+            // nothing else can be writing, and waiting on ourselves would never end
+            writePending.run();
+            return;
+        }
+        try {
+            writer.submit(writePending).get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Number of commits requested through this persister's editors. */
+    public long getWritesRequested() {
+        return writesRequested.get();
+    }
+
+    /** Number of preferences commits actually performed. */
+    public long getWritesPerformed() {
+        return writesPerformed.get();
+    }
+
+    private synchronized void enqueue(final String name, final PendingEdits edits) {
+        PendingEdits existing = pending.get(name);
+        if (existing == null) {
+            existing = new PendingEdits();
+            pending.put(name, existing);
+        }
+        existing.mergeFrom(edits);
+        writesRequested.incrementAndGet();
+        if (!writeScheduled) {
+            writeScheduled = true;
+            writer.schedule(writePending, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable writePending = new Runnable() {
+        @Override
+        public void run() {
+            final Map<String, PendingEdits> toWrite;
+            synchronized (StatePersister.this) {
+                writeScheduled = false;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                toWrite = new HashMap<String, PendingEdits>(pending);
+                writing.addAll(pending.keySet());
+                pending.clear();
+            }
+            for (final Map.Entry<String, PendingEdits> entry : toWrite.entrySet()) {
+                final SharedPreferences.Editor prefs = context.getSharedPreferences(entry.getKey(),
+                        Context.MODE_PRIVATE).edit();
+                entry.getValue().applyTo(prefs);
+                prefs.commit();
+                writesPerformed.incrementAndGet();
+                synchronized (StatePersister.this) {
+                    writing.remove(entry.getKey());
+                }
+            }
+        }
+    };
+
+    /** Changes to a single preferences file, with later changes to a key replacing earlier ones. */
+    private static final class PendingEdits {
+        private boolean clear;
+        private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+        private void put(final String key, final Object value) {
+            values.put(key, value);
+        }
+
+        private void clear() {
+            clear = true;
+            values.clear();
+        }
+
+        private void mergeFrom(final PendingEdits edits) {
+            if (edits.clear) {
+                clear();
+            }
+            values.putAll(edits.values);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void applyTo(final SharedPreferences.Editor prefs) {
+            if (clear) {
+                prefs.clear();
+            }
+            for (final Map.Entry<String, Object> entry : values.entrySet()) {
+                final String key = entry.getKey();
+                final Object value = entry.getValue();
+                if (value == REMOVED) {
+                    prefs.remove(key);
+                } else if (value instanceof Boolean) {
+                    prefs.putBoolean(key, (Boolean) value);
+                } else if (value instanceof Float) {
+                    prefs.putFloat(key, (Float) value);
+                } else if (value instanceof Integer) {
+                    prefs.putInt(key, (Integer) value);
+                } else if (value instanceof Long) {
+                    prefs.putLong(key, (Long) value);
+                } else if (value instanceof String) {
+                    prefs.putString(key, (String) value);
+                } else if (value instanceof Set) {
+                    prefs.putStringSet(key, (Set<String>) value);
+                }
+            }
+        }
+    }
+
+    private final class BatchedEditor implements SharedPreferences.Editor {
+        private final String name;
+        private PendingEdits edits = new PendingEdits();
+
+        private BatchedEditor(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public SharedPreferences.Editor putString(final String key, final String value) {
+            // a null string is how SharedPreferences spells remove
+            edits.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putStringSet(final String key, final Set<String> values) {
+            edits.put(key, values == null ? REMOVED : new HashSet<String>(values));
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putInt(final String key, final int value) {
+            edits.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putLong(final String key, final long value) {
+            edits.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putFloat(final String key, final float value) {
+            edits.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putBoolean(final String key, final boolean value) {
+            edits.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor remove(final String key) {
+            edits.put(key, REMOVED);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor clear() {
+            edits.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            apply();
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            enqueue(name, edits);
+            edits = new PendingEdits();
+        }
+    }
+}
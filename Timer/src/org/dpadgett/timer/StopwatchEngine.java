@@ -0,0 +1,310 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.io.File;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Holds any number of independent stopwatches.  Their state lives in
+ * parallel primitive arrays indexed by position, rather than in an object
+ * per stopwatch, so timing every one of them on each frame only walks a
+ * few arrays.  Each stopwatch has its own lap series and lap journal, and
+ * saving one only writes that one's keys, so the cost of an operation
+ * doesn't grow with the number of stopwatches.
+ *
+ * @author dpadgett
+ */
+public class StopwatchEngine {
+
+    private static final String PREFS_NAME = "Stopwatches";
+    private static final int MOVING_AVERAGE_LAPS = 5;
+
+    private static StopwatchEngine instance;
+
+    private final StatePersister persister;
+    private final File lapsDir;
+
+    private int count;
+    private int nextId;
+    // stable id of each stopwatch, which names its keys and lap journal
+    private int[] ids;
+    private boolean[] running;
+    // when the current run began, in elapsed realtime nanoseconds
+    private long[] startedAt;
+    // time in the current lap from before the current run, in nanoseconds
+    private long[] lapElapsed;
+    // total of every completed lap, in nanoseconds
+    private long[] lapsTotal;
+    private LapSeries[] laps;
+    private LapJournal[] journals;
+
+    private StopwatchEngine(final Context context) {
+        this.persister = StatePersister.get(context);
+        this.lapsDir = context.getFilesDir();
+        allocate(4);
+        restoreState(persister.getSharedPreferences(PREFS_NAME));
+    }
+
+    public static synchronized StopwatchEngine get(final Context context) {
+        if (instance == null) {
+            instance = new StopwatchEngine(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /** The stable id of the stopwatch at the given position. */
+    public int getId(final int index) {
+        return ids[index];
+    }
+
+    /** Adds a new, stopped stopwatch at the end, and returns its position. */
+    public int add() {
+        if (count == ids.length) {
+            allocate(ids.length * 2);
+        }
+        final int index = count++;
+        ids[index] = nextId++;
+        running[index] = false;
+        startedAt[index] = 0L;
+        lapElapsed[index] = 0L;
+        lapsTotal[index] = 0L;
+        laps[index] = new LapSeries(MOVING_AVERAGE_LAPS);
+        journals[index] = journalFor(ids[index]);
+        clearJournal(journals[index]);
+        saveIds();
+        saveState(index);
+        return index;
+    }
+
+    /** Removes the stopwatch at the given position, shifting the later ones down. */
+    public void remove(final int index) {
+        final int id = ids[index];
+        final LapJournal journal = journals[index];
+        final int moved = count - index - 1;
+        System.arraycopy(ids, index + 1, ids, index, moved);
+        System.arraycopy(running, index + 1, running, index, moved);
+        System.arraycopy(startedAt, index + 1, startedAt, index, moved);
+        System.arraycopy(lapElapsed, index + 1, lapElapsed, index, moved);
+        System.arraycopy(lapsTotal, index + 1, lapsTotal, index, moved);
+        System.arraycopy(laps, index + 1, laps, index, moved);
+        System.arraycopy(journals, index + 1, journals, index, moved);
+        count--;
+        laps[count] = null;
+        journals[count] = null;
+
+        final SharedPreferences.Editor prefs = persister.edit(PREFS_NAME);
+        prefs.remove("running" + id);
+        prefs.remove("startedAtNanos" + id);
+        prefs.remove("lapElapsedNanos" + id);
+        prefs.remove("lapsTotalNanos" + id);
+        prefs.commit();
+        saveIds();
+        persister.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.delete();
+            }
+        });
+    }
+
+    public boolean isRunning(final int index) {
+        return running[index];
+    }
+
+    /** Time in the current lap as of the given elapsed realtime, in nanoseconds. */
+    public long getLapElapsed(final int index, final long now) {
+        return running[index] ? lapElapsed[index] + Math.max(0, now - startedAt[index]) : lapElapsed[index];
+    }
+
+    /** Total time on the stopwatch as of the given elapsed realtime, in nanoseconds. */
+    public long getElapsed(final int index, final long now) {
+        return lapsTotal[index] + getLapElapsed(index, now);
+    }
+
+    public LapSeries getLaps(final int index) {
+        return laps[index];
+    }
+
+    /** Starts the given stopwatch as of the given elapsed realtime, in nanoseconds. */
+    public void start(final int index, final long timestamp) {
+        if (running[index]) {
+            return;
+        }
+        running[index] = true;
+        startedAt[index] = timestamp;
+        saveState(index);
+    }
+
+    /** Stops the given stopwatch as of the given elapsed realtime, in nanoseconds. */
+    public void stop(final int index, final long timestamp) {
+        if (!running[index]) {
+            return;
+        }
+        lapElapsed[index] = getLapElapsed(index, timestamp);
+        running[index] = false;
+        saveState(index);
+    }
+
+    /**
+     * Ends the current lap of the given stopwatch as of the given elapsed
+     * realtime, in nanoseconds, and returns its time.
+     */
+    public long lap(final int index, final long timestamp) {
+        final long lapTime = getLapElapsed(index, timestamp);
+        lapsTotal[index] += lapTime;
+        lapElapsed[index] = 0L;
+        if (running[index]) {
+            startedAt[index] = Math.max(timestamp, startedAt[index]);
+        }
+        laps[index].add(lapTime);
+        final LapJournal journal = journals[index];
+        persister.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.append(lapTime);
+            }
+        });
+        saveState(index);
+        return lapTime;
+    }
+
+    /** Stops the given stopwatch and clears its time and laps. */
+    public void reset(final int index) {
+        running[index] = false;
+        startedAt[index] = 0L;
+        lapElapsed[index] = 0L;
+        lapsTotal[index] = 0L;
+        laps[index].clear();
+        clearJournal(journals[index]);
+        saveState(index);
+    }
+
+    private void saveState(final int index) {
+        final int id = ids[index];
+        final SharedPreferences.Editor prefs = persister.edit(PREFS_NAME);
+        prefs.putBoolean("running" + id, running[index]);
+        prefs.putLong("startedAtNanos" + id, startedAt[index]);
+        prefs.putLong("lapElapsedNanos" + id, lapElapsed[index]);
+        prefs.putLong("lapsTotalNanos" + id, lapsTotal[index]);
+        TimeBase.capture(TimeSources.get()).save(prefs, "startedAt");
+        prefs.commit();
+    }
+
+    /** Saves when every stopwatch started, with a time base from this boot. */
+    private void saveStartTimes() {
+        final SharedPreferences.Editor prefs = persister.edit(PREFS_NAME);
+        for (int index = 0; index < count; index++) {
+            prefs.putLong("startedAtNanos" + ids[index], startedAt[index]);
+        }
+        TimeBase.capture(TimeSources.get()).save(prefs, "startedAt");
+        prefs.commit();
+    }
+
+    private void saveIds() {
+        final StringBuilder idList = new StringBuilder();
+        for (int idx = 0; idx < count; idx++) {
+            if (idx > 0) {
+                idList.append(',');
+            }
+            idList.append(ids[idx]);
+        }
+        final SharedPreferences.Editor prefs = persister.edit(PREFS_NAME);
+        prefs.putString("ids", idList.toString());
+        prefs.putInt("nextId", nextId);
+        prefs.commit();
+    }
+
+    private void restoreState(final SharedPreferences prefs) {
+        nextId = prefs.getInt("nextId", 0);
+        final String idList = prefs.getString("ids", "");
+        if (idList.length() == 0) {
+            return;
+        }
+        final TimeBase timeBase = TimeBase.restore(prefs, "startedAt");
+        final boolean rebooted = timeBase != null && !timeBase.isSameBoot(TimeSources.get());
+        for (final String idString : idList.split(",")) {
+            final int id;
+            try {
+                id = Integer.parseInt(idString);
+            } catch (final NumberFormatException e) {
+                e.printStackTrace();
+                continue;
+            }
+            if (count == ids.length) {
+                allocate(ids.length * 2);
+            }
+            final int index = count++;
+            ids[index] = id;
+            running[index] = prefs.getBoolean("running" + id, false);
+            startedAt[index] = prefs.getLong("startedAtNanos" + id, 0L);
+            if (running[index] && rebooted) {
+                // carries running stopwatches across a reboot
+                startedAt[index] = timeBase.rebase(startedAt[index], TimeSources.get());
+            }
+            lapElapsed[index] = prefs.getLong("lapElapsedNanos" + id, 0L);
+            lapsTotal[index] = prefs.getLong("lapsTotalNanos" + id, 0L);
+            laps[index] = new LapSeries(MOVING_AVERAGE_LAPS);
+            journals[index] = journalFor(id);
+            for (final long lapTime : journals[index].load()) {
+                laps[index].add(lapTime);
+            }
+            nextId = Math.max(nextId, id + 1);
+        }
+        if (rebooted) {
+            // saving any one stopwatch replaces the shared base, so move
+            // them all to this boot now
+            saveStartTimes();
+        }
+    }
+
+    private LapJournal journalFor(final int id) {
+        return new LapJournal(new File(lapsDir, "Stopwatch_" + id + ".laps"));
+    }
+
+    private void clearJournal(final LapJournal journal) {
+        persister.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.clear();
+            }
+        });
+    }
+
+    private void allocate(final int capacity) {
+        ids = grow(ids, new int[capacity]);
+        running = grow(running, new boolean[capacity]);
+        startedAt = grow(startedAt, new long[capacity]);
+        lapElapsed = grow(lapElapsed, new long[capacity]);
+        lapsTotal = grow(lapsTotal, new long[capacity]);
+        laps = grow(laps, new LapSeries[capacity]);
+        journals = grow(journals, new LapJournal[capacity]);
+    }
+
+    private <T> T grow(final T from, final T to) {
+        if (from != null) {
+            System.arraycopy(from, 0, to, 0, count);
+        }
+        return to;
+    }
+}
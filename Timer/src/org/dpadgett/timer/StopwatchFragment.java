@@ -34,7 +34,7 @@ import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.ScrollView;
+import android.widget.TextView;
 
 /**
  * Fragment which handles the UI and logic for running a stopwatch.
@@ -43,6 +43,11 @@ import android.widget.ScrollView;
  */
 public class StopwatchFragment extends Fragment {
 
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private StatePersister persister;
+
+    // all times are in nanoseconds, on the time source's elapsed realtime clock
     private long additionalElapsed = 0L;
     private long additionalLapTimeElapsed = 0L;
     private long timeStarted = 0L;
@@ -55,9 +60,17 @@ public class StopwatchFragment extends Fragment {
 
     private boolean isTimerRunning;
 
+    // when the current session was first started, in wall clock milliseconds
+    private long sessionStarted;
+
     private boolean autoStartStopwatch = false;
 
     public void start() {
+        start(TimeSources.get().elapsedRealtimeNanos());
+    }
+
+    /** Starts the stopwatch as of the given elapsed realtime, in nanoseconds. */
+    public void start(final long timestamp) {
         // We can start the timer via something other than the button
         // If that is the case, then make sure we are tracking the timer as started.
         if (isTimerRunning == false) {
@@ -65,7 +78,11 @@ public class StopwatchFragment extends Fragment {
         }
         final Button startButton = (Button) rootView.findViewById(R.id.startButton);
         final Button resetButton = (Button) rootView.findViewById(R.id.stopButton);
-        timeStarted = System.currentTimeMillis();
+        if (additionalElapsed == 0 && additionalLapTimeElapsed == 0 && lapTimes.size() == 0) {
+            sessionStarted = TimeSources.get().currentTimeMillis()
+                    - (TimeSources.get().elapsedRealtimeNanos() - timestamp) / NANOS_PER_MILLI;
+        }
+        timeStarted = timestamp;
         timerText.setStartingTime(timeStarted - additionalElapsed - additionalLapTimeElapsed);
         timerText.resume();
         lapTimeText.setStartingTime(timeStarted - additionalElapsed);
@@ -78,9 +95,14 @@ public class StopwatchFragment extends Fragment {
     }
 
     public void stop() {
+        stop(TimeSources.get().elapsedRealtimeNanos());
+    }
+
+    /** Stops the stopwatch as of the given elapsed realtime, in nanoseconds. */
+    public void stop(final long timestamp) {
         final Button startButton = (Button) rootView.findViewById(R.id.startButton);
         final Button resetButton = (Button) rootView.findViewById(R.id.stopButton);
-        final long timeStopped = System.currentTimeMillis();
+        final long timeStopped = Math.max(timestamp, timeStarted);
         startButton.setText(context.getString(R.string.stopwatch_button_start));
         resetButton.setText(context.getString(R.string.stopwatch_button_reset));
         additionalElapsed += timeStopped - timeStarted;
@@ -90,8 +112,13 @@ public class StopwatchFragment extends Fragment {
     }
 
     public void lap() {
+        lap(TimeSources.get().elapsedRealtimeNanos());
+    }
+
+    /** Ends the current lap as of the given elapsed realtime, in nanoseconds. */
+    public void lap(final long timestamp) {
         final long origTimeStarted = timeStarted;
-        timeStarted = System.currentTimeMillis();
+        timeStarted = Math.max(timestamp, origTimeStarted);
         final long lapTime = timeStarted - origTimeStarted + additionalElapsed; // this is the lap time
         additionalLapTimeElapsed += lapTime;
         additionalElapsed = 0L;
@@ -103,6 +130,7 @@ public class StopwatchFragment extends Fragment {
     }
 
     public void reset() {
+        archiveSession();
         timeStarted = 0L;
         additionalElapsed = 0L;
         additionalLapTimeElapsed = 0L;
@@ -112,6 +140,26 @@ public class StopwatchFragment extends Fragment {
         saveState();
     }
 
+    /** Saves the session about to be reset into the session archive, if there was one. */
+    private void archiveSession() {
+        final long total = additionalLapTimeElapsed + additionalElapsed;
+        if (total == 0 && lapTimes.size() == 0) {
+            return;
+        }
+        final long[] laps = lapTimes.toArray();
+        // sessions from before we kept track of the start are dated by their end instead
+        final long started = sessionStarted != 0 ? sessionStarted
+                : TimeSources.get().currentTimeMillis() - total / NANOS_PER_MILLI;
+        final SessionArchive archive = SessionArchive.get(context);
+        persister.execute(new Runnable() {
+            @Override
+            public void run() {
+                archive.append(started, total, laps);
+            }
+        });
+        sessionStarted = 0L;
+    }
+
     @Override
     public void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -131,6 +179,7 @@ public class StopwatchFragment extends Fragment {
         // Inflate the layout for this fragment
         rootView = inflater.inflate(R.layout.stopwatch, container, false);
         context = rootView.getContext();
+        persister = StatePersister.get(context);
 
         ((LinearLayout) rootView).setDividerDrawable(new ListView(rootView.getContext()).getDivider());
 
@@ -140,17 +189,27 @@ public class StopwatchFragment extends Fragment {
         timerText = (TimerTextView) rootView.findViewById(R.id.timerText);
         lapTimeText = (TimerTextView) rootView.findViewById(R.id.liveLapTime);
         lapTimeText.setTextPrefix(String.format("%s ", context.getString(R.string.stopwatch_lap_time_prefix)));
+        timerText.setUserVisible(getUserVisibleHint());
+        lapTimeText.setUserVisible(getUserVisibleHint());
+
+        lapTimes = new LapTimes((ListView) rootView.findViewById(R.id.lapTimesView),
+                (TextView) rootView.findViewById(R.id.lapStatsText));
 
-        lapTimes = new LapTimes((ScrollView) rootView.findViewById(R.id.scrollView1));
+        // stamp actions with when the button went down, not when the click got handled
+        final PressTimestamps pressTimestamps = new PressTimestamps(TimeSources.get(),
+                LatencyHistogram.get(context, LatencyHistogram.INPUT_LATENCY));
+        pressTimestamps.attach(startButton);
+        pressTimestamps.attach(resetButton);
 
         startButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(final View view) {
+                final long pressedAt = pressTimestamps.consume(view);
                 isTimerRunning = !isTimerRunning;
                 if (isTimerRunning) { // start
-                    start();
+                    start(pressedAt);
                 } else { // stop
-                    stop();
+                    stop(pressedAt);
                 }
 
             }
@@ -158,8 +217,9 @@ public class StopwatchFragment extends Fragment {
         resetButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(final View view) {
+                final long pressedAt = pressTimestamps.consume(view);
                 if (isTimerRunning) { // lap
-                    lap();
+                    lap(pressedAt);
                 } else { // reset
                     reset();
                 }
@@ -185,13 +245,26 @@ public class StopwatchFragment extends Fragment {
     }
 
     private void restoreState() {
-        final SharedPreferences prefs = context.getSharedPreferences("Stopwatch", Context.MODE_PRIVATE);
+        final SharedPreferences prefs = persister.getSharedPreferences("Stopwatch");
 
         if (prefs.contains("isTimerRunning")) {
             isTimerRunning = prefs.getBoolean("isTimerRunning", false);
-            timeStarted = prefs.getLong("timeStarted", 0L);
-            additionalElapsed = prefs.getLong("additionalElapsed", 0L);
-            additionalLapTimeElapsed = prefs.getLong("additionalLapTimeElapsed", 0L);
+            if (prefs.contains("timeStartedNanos")) {
+                timeStarted = prefs.getLong("timeStartedNanos", 0L);
+                final TimeBase timeBase = TimeBase.restore(prefs, "timeStarted");
+                if (timeBase != null) {
+                    // carries a running stopwatch across a reboot
+                    timeStarted = timeBase.rebase(timeStarted, TimeSources.get());
+                }
+                additionalElapsed = prefs.getLong("additionalElapsedNanos", 0L);
+                additionalLapTimeElapsed = prefs.getLong("additionalLapTimeElapsedNanos", 0L);
+                sessionStarted = prefs.getLong("sessionStartedMillis", 0L);
+            } else {
+                // saved by an older version, in wall clock milliseconds
+                timeStarted = TimeBase.fromWallClock(prefs.getLong("timeStarted", 0L), TimeSources.get());
+                additionalElapsed = prefs.getLong("additionalElapsed", 0L) * NANOS_PER_MILLI;
+                additionalLapTimeElapsed = prefs.getLong("additionalLapTimeElapsed", 0L) * NANOS_PER_MILLI;
+            }
             lapTimes.restoreState(prefs);
         }
 
@@ -223,6 +296,16 @@ public class StopwatchFragment extends Fragment {
         lapTimeText.forceUpdate(timeStarted);
     }
 
+    @Override
+    public void setUserVisibleHint(final boolean isVisibleToUser) {
+        super.setUserVisibleHint(isVisibleToUser);
+        // no point ticking while another tab is showing
+        if (timerText != null) {
+            timerText.setUserVisible(isVisibleToUser);
+            lapTimeText.setUserVisible(isVisibleToUser);
+        }
+    }
+
     @Override
     public void onSaveInstanceState(final Bundle saveState) {
         super.onSaveInstanceState(saveState);
@@ -233,11 +316,16 @@ public class StopwatchFragment extends Fragment {
 
     /** Called whenever internal persisted state is changed */
     private void saveState() {
-        final SharedPreferences.Editor prefs = context.getSharedPreferences("Stopwatch", Context.MODE_PRIVATE).edit();
+        final SharedPreferences.Editor prefs = persister.edit("Stopwatch");
         prefs.putBoolean("isTimerRunning", isTimerRunning);
-        prefs.putLong("timeStarted", timeStarted);
-        prefs.putLong("additionalElapsed", additionalElapsed);
-        prefs.putLong("additionalLapTimeElapsed", additionalLapTimeElapsed);
+        prefs.putLong("timeStartedNanos", timeStarted);
+        TimeBase.capture(TimeSources.get()).save(prefs, "timeStarted");
+        prefs.putLong("additionalElapsedNanos", additionalElapsed);
+        prefs.putLong("additionalLapTimeElapsedNanos", additionalLapTimeElapsed);
+        prefs.putLong("sessionStartedMillis", sessionStarted);
+        prefs.remove("timeStarted");
+        prefs.remove("additionalElapsed");
+        prefs.remove("additionalLapTimeElapsed");
         prefs.commit();
     }
 
@@ -119,7 +119,7 @@ public class TabsAdapter extends FragmentPagerAdapter
     @Override
     public void onPageSelected(int position) {
         mActionBar.setSelectedNavigationItem(position);
-        SharedPreferences.Editor prefs = mContext.getSharedPreferences("TimerActivity", Context.MODE_PRIVATE).edit();
+        SharedPreferences.Editor prefs = StatePersister.get(mContext).edit("TimerActivity");
         prefs.putInt("tab", position);
         prefs.commit();
     }
@@ -0,0 +1,99 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import android.content.SharedPreferences;
+
+/**
+ * A matching pair of monotonic and wall clock readings, persisted next to
+ * any monotonic timestamps so they still mean something after the process
+ * dies.  Within the same boot the monotonic timestamps are used as-is; after
+ * a reboot the monotonic clock has restarted, so they are carried over
+ * through the wall clock instead.
+ *
+ * @author dpadgett
+ */
+public final class TimeBase {
+	private static final long NANOS_PER_MILLI = 1000000L;
+	// how far the two clocks may drift apart before we assume a reboot,
+	// when the boot id isn't available
+	private static final long SAME_BOOT_TOLERANCE_MILLIS = 2000L;
+
+	private final long elapsedRealtimeNanos;
+	private final long currentTimeMillis;
+	private final String bootId;
+
+	private TimeBase(long elapsedRealtimeNanos, long currentTimeMillis, String bootId) {
+		this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+		this.currentTimeMillis = currentTimeMillis;
+		this.bootId = bootId;
+	}
+
+	/** Reads both clocks of the given source. */
+	public static TimeBase capture(TimeSource source) {
+		return new TimeBase(source.elapsedRealtimeNanos(), source.currentTimeMillis(), source.getBootId());
+	}
+
+	public void save(SharedPreferences.Editor prefs, String keyPrefix) {
+		prefs.putLong(keyPrefix + "BaseElapsedNanos", elapsedRealtimeNanos);
+		prefs.putLong(keyPrefix + "BaseWallMillis", currentTimeMillis);
+		prefs.putString(keyPrefix + "BaseBootId", bootId);
+	}
+
+	/** Restores a saved time base, or returns null if none was saved. */
+	public static TimeBase restore(SharedPreferences prefs, String keyPrefix) {
+		if (!prefs.contains(keyPrefix + "BaseElapsedNanos")) {
+			return null;
+		}
+		return new TimeBase(prefs.getLong(keyPrefix + "BaseElapsedNanos", 0L),
+				prefs.getLong(keyPrefix + "BaseWallMillis", 0L),
+				prefs.getString(keyPrefix + "BaseBootId", null));
+	}
+
+	/** Whether the monotonic clock of the given source is the one this base was captured from. */
+	public boolean isSameBoot(TimeSource now) {
+		final String currentBootId = now.getBootId();
+		if (bootId != null && currentBootId != null) {
+			return bootId.equals(currentBootId);
+		}
+		final long elapsedNanos = now.elapsedRealtimeNanos();
+		if (elapsedNanos < elapsedRealtimeNanos) {
+			return false;
+		}
+		final long elapsedMillis = (elapsedNanos - elapsedRealtimeNanos) / NANOS_PER_MILLI;
+		final long wallMillis = now.currentTimeMillis() - currentTimeMillis;
+		return Math.abs(wallMillis - elapsedMillis) < SAME_BOOT_TOLERANCE_MILLIS;
+	}
+
+	/**
+	 * Translates a monotonic timestamp taken in the same boot as this base
+	 * into the monotonic timeline of the given source.
+	 */
+	public long rebase(long elapsedRealtimeNanos, TimeSource now) {
+		if (isSameBoot(now)) {
+			return elapsedRealtimeNanos;
+		}
+		final long wallMillis = currentTimeMillis
+				+ (elapsedRealtimeNanos - this.elapsedRealtimeNanos) / NANOS_PER_MILLI;
+		return now.elapsedRealtimeNanos() - (now.currentTimeMillis() - wallMillis) * NANOS_PER_MILLI;
+	}
+
+	/** Converts a wall clock timestamp into the monotonic timeline of the given source. */
+	public static long fromWallClock(long currentTimeMillis, TimeSource now) {
+		return now.elapsedRealtimeNanos() - (now.currentTimeMillis() - currentTimeMillis) * NANOS_PER_MILLI;
+	}
+}
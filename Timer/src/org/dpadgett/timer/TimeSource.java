@@ -0,0 +1,43 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+/**
+ * Source of the current time.  All timing is done against
+ * {@link #elapsedRealtimeNanos()}, which is monotonic and keeps counting
+ * through deep sleep, so clock changes and NTP adjustments can't corrupt
+ * a running timer.  The wall clock is only used to carry timings across
+ * a reboot, via {@link TimeBase}.
+ *
+ * @author dpadgett
+ */
+public interface TimeSource {
+	/** Nanoseconds since boot, including time spent in deep sleep. */
+	long elapsedRealtimeNanos();
+
+	/**
+	 * Milliseconds since boot, not counting deep sleep.  This is the clock
+	 * input events are timestamped with.
+	 */
+	long uptimeMillis();
+
+	/** Milliseconds since the epoch, according to the (adjustable) wall clock. */
+	long currentTimeMillis();
+
+	/** An identifier unique to the current boot, or null if it can't be determined. */
+	String getBootId();
+}
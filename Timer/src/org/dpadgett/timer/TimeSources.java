@@ -0,0 +1,120 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import android.os.SystemClock;
+
+/**
+ * Factory methods for {@link TimeSource}s, and the process-wide default
+ * every timer reads from.  Timers ask for the default each time they need
+ * the time, rather than keeping it, so replacing it takes effect at once.
+ *
+ * @author dpadgett
+ */
+public final class TimeSources {
+	private TimeSources() { }
+
+	private static final TimeSource SYSTEM = new SystemTimeSource();
+	private static volatile TimeSource defaultSource = SYSTEM;
+
+	/** The time source timers should use. */
+	public static TimeSource get() {
+		return defaultSource;
+	}
+
+	/** Replaces the default time source, e.g. with a {@link FakeTimeSource} in tests. */
+	public static void setDefault(TimeSource source) {
+		defaultSource = source == null ? SYSTEM : source;
+	}
+
+	/** The real clocks of the device. */
+	public static TimeSource system() {
+		return SYSTEM;
+	}
+
+	/**
+	 * Converts a timestamp on the {@link TimeSource#uptimeMillis()} clock,
+	 * such as an input event's time, to the elapsed realtime clock.
+	 */
+	public static long uptimeToElapsedRealtimeNanos(long uptimeMillis, TimeSource source) {
+		return source.elapsedRealtimeNanos() - (source.uptimeMillis() - uptimeMillis) * 1000000L;
+	}
+
+	/**
+	 * {@link SystemClock#elapsedRealtime()} only has millisecond resolution
+	 * (the nanosecond variant needs a newer platform), and
+	 * {@link System#nanoTime()} stops during deep sleep.  So this
+	 * interpolates between elapsedRealtime ticks with nanoTime, and
+	 * re-anchors whenever the two disagree by more than a millisecond.
+	 */
+	private static final class SystemTimeSource implements TimeSource {
+		private static final long NANOS_PER_MILLI = 1000000L;
+
+		private long offset;
+		private long lastNanos;
+		private String bootId;
+		private boolean bootIdRead;
+
+		@Override
+		public synchronized long elapsedRealtimeNanos() {
+			final long nanoTime = System.nanoTime();
+			final long elapsed = SystemClock.elapsedRealtime() * NANOS_PER_MILLI;
+			long nanos = nanoTime + offset;
+			if (nanos < elapsed || nanos >= elapsed + NANOS_PER_MILLI) {
+				offset = elapsed - nanoTime;
+				nanos = elapsed;
+			}
+			// never step backwards when re-anchoring
+			if (nanos < lastNanos) {
+				nanos = lastNanos;
+			}
+			lastNanos = nanos;
+			return nanos;
+		}
+
+		@Override
+		public long uptimeMillis() {
+			return SystemClock.uptimeMillis();
+		}
+
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public synchronized String getBootId() {
+			if (!bootIdRead) {
+				bootIdRead = true;
+				BufferedReader reader = null;
+				try {
+					reader = new BufferedReader(new FileReader("/proc/sys/kernel/random/boot_id"), 64);
+					bootId = reader.readLine();
+				} catch (IOException e) {
+					bootId = null;
+				} finally {
+					Closeables.closeQuietly(reader);
+				}
+			}
+			return bootId;
+		}
+	}
+}
@@ -24,6 +24,8 @@ import android.support.v4.view.ViewPager;
 
 import com.actionbarsherlock.app.ActionBar;
 import com.actionbarsherlock.app.SherlockFragmentActivity;
+import com.actionbarsherlock.view.Menu;
+import com.actionbarsherlock.view.MenuItem;
 
 /**
  * Main activity class. Its job is mainly to create the different
@@ -36,10 +38,12 @@ import com.actionbarsherlock.app.SherlockFragmentActivity;
  */
 public class TimerActivity extends SherlockFragmentActivity {
 
-    static final String ACTION_SHOW_DIALOG = "org.dpadgett.timer.CountdownFragment.SHOW_DIALOG";
-    static final String ACTION_DISMISS_DIALOG = "org.dpadgett.timer.CountdownFragment.DISMISS_DIALOG";
     static final String START_REASON = "START_REASON";
 
+    private static final int MENU_HISTORY = 1;
+    private static final int MENU_PRECISE_FINISH = 2;
+    private static final int MENU_DIAGNOSTICS = 3;
+
     public enum StartReason {
         START_REASON_AUTOSTART_STOPWATCH,
         START_REASON_NONE
@@ -48,7 +52,9 @@ public class TimerActivity extends SherlockFragmentActivity {
     private static enum Tab {
         WORLD_CLOCK(R.string.tab_title_worldclock, WorldClockFragment.class),
         STOPWATCH(R.string.tab_title_stopwatch, StopwatchFragment.class),
-        COUNTDOWN(R.string.tab_title_countdown, CountdownFragment.class);
+        COUNTDOWN(R.string.tab_title_countdown, CountdownFragment.class),
+        LANES(R.string.tab_title_lanes, LanesFragment.class),
+        INTERVALS(R.string.tab_title_intervals, IntervalsFragment.class);
 
         private final int title;
         private final Class<? extends Fragment> clazz;
@@ -99,7 +105,7 @@ public class TimerActivity extends SherlockFragmentActivity {
             startReason = (StartReason) extras.getSerializable(START_REASON);
         }
 
-        final SharedPreferences prefs = getSharedPreferences("TimerActivity", Context.MODE_PRIVATE);
+        final SharedPreferences prefs = StatePersister.get(this).getSharedPreferences("TimerActivity");
         if (startReason == StartReason.START_REASON_AUTOSTART_STOPWATCH) {
             bar.setSelectedNavigationItem(Tab.STOPWATCH.ordinal());
         } else if (prefs.contains("tab")) {
@@ -116,49 +122,72 @@ public class TimerActivity extends SherlockFragmentActivity {
                             public void onClick(final DialogInterface dialog, final int which) {
                                 dialog.dismiss();
                                 final Intent intent = new Intent(TimerActivity.this, AlarmService.class)
-                                        .putExtra("startAlarm", false).putExtra("fromFragment", true)
-                                        .setAction("stopAlarm");
+                                        .setAction(AlarmService.ACTION_DISMISS);
                                 TimerActivity.this.startService(intent);
                             }
                         }).setCancelable(false).create();
 
-        if (prefs.getBoolean("countdownDialogShowing", false)) {
-            alarmDialog.show();
+        // shows the dialog straight away if the alarm is already ringing
+        AlarmEvents.get(this).register(alarmListener);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(final Menu menu) {
+        menu.add(Menu.NONE, MENU_HISTORY, Menu.NONE, R.string.history_title);
+        menu.add(Menu.NONE, MENU_PRECISE_FINISH, Menu.NONE, R.string.countdown_precise_finish)
+                .setCheckable(true)
+                .setChecked(StatePersister.get(this).getSharedPreferences("Countdown")
+                        .getBoolean("preciseFinish", false));
+        menu.add(Menu.NONE, MENU_DIAGNOSTICS, Menu.NONE, R.string.diagnostics_title);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(final MenuItem item) {
+        if (item.getItemId() == MENU_HISTORY) {
+            startActivity(new Intent(this, HistoryActivity.class));
+            return true;
+        } else if (item.getItemId() == MENU_PRECISE_FINISH) {
+            final boolean preciseFinish = !item.isChecked();
+            item.setChecked(preciseFinish);
+            final SharedPreferences.Editor prefs = StatePersister.get(this).edit("Countdown");
+            prefs.putBoolean("preciseFinish", preciseFinish);
+            prefs.commit();
+            final CountdownFragment countdown = (CountdownFragment) mTabsAdapter.getCachedItem(Tab.COUNTDOWN.ordinal());
+            countdown.setPreciseFinish(preciseFinish);
+            return true;
+        } else if (item.getItemId() == MENU_DIAGNOSTICS) {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
         }
+        return super.onOptionsItemSelected(item);
+    }
 
-        getApplicationContext().registerReceiver(showDialogReceiver, new IntentFilter(ACTION_SHOW_DIALOG));
-        getApplicationContext().registerReceiver(dismissDialogReceiver, new IntentFilter(ACTION_DISMISS_DIALOG));
+    @Override
+    protected void onPause() {
+        // fragments save their state as they pause, so make sure it all hits the disk
+        super.onPause();
+        StatePersister.get(this).flush();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        getApplicationContext().unregisterReceiver(showDialogReceiver);
-        getApplicationContext().unregisterReceiver(dismissDialogReceiver);
+        AlarmEvents.get(this).unregister(alarmListener);
         if (alarmDialog.isShowing()) {
             alarmDialog.dismiss();
         }
     }
 
-    private final BroadcastReceiver showDialogReceiver = new BroadcastReceiver() {
+    private final AlarmEvents.Listener alarmListener = new AlarmEvents.Listener() {
         @Override
-        public void onReceive(final Context context, final Intent intent) {
-            if (alarmDialog != null) {
-                alarmDialog.show();
-            }
-
-            final CountdownFragment countdown = (CountdownFragment) mTabsAdapter.getCachedItem(Tab.COUNTDOWN.ordinal());
-            countdown.inputModeOn();
+        public void onAlarmRinging() {
+            alarmDialog.show();
         }
-    };
 
-    private final BroadcastReceiver dismissDialogReceiver = new BroadcastReceiver() {
         @Override
-        public void onReceive(final Context context, final Intent intent) {
-            // alarmDialog could be null due to a variety of race conditions
-            if (alarmDialog != null) {
-                alarmDialog.dismiss();
-            }
+        public void onAlarmDismissed() {
+            alarmDialog.dismiss();
         }
     };
 }
@@ -0,0 +1,354 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * Every timezone the world clock picker offers, by display name, bucketed
+ * by current offset from UTC.  Working out the display names means going
+ * through every zone on the device, which is far too slow to do as the
+ * picker opens, so it is done once in the background and saved along with
+ * the locale and system build it was done for.  It is only worked out
+ * again when one of those changes; a system update is what brings new
+ * timezone data.  Offsets move with daylight saving, so they are worked
+ * out afresh whenever the index is loaded, and at most every hour after.
+ *
+ * Zones which share a display name with another aren't offered by
+ * offset, but are kept for {@link TimezoneSearch} to find by city.
+ *
+ * An index never changes once built; {@link #prepare} swaps in a new one
+ * when needed.
+ *
+ * @author dpadgett
+ */
+public final class TimezoneIndex {
+
+    private static final int MAGIC = 0x545a4958; // "TZIX"
+    private static final int VERSION = 2;
+    private static final long MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "TimezoneIndex");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // the latest build or load, which may still be running
+    private static Future<TimezoneIndex> pending;
+    // the latest index to be ready
+    private static volatile TimezoneIndex current;
+
+    private final String locale;
+    private final String system;
+    private final long hour;
+    // every display name, in the order they were first seen, and the first zone to have it
+    private final String[] names;
+    private final String[] ids;
+    // the other zones, and which of the names each one shares
+    private final String[] aliasIds;
+    private final int[] aliasOf;
+    private final int[] offsets;
+    private final List<List<String>> namesByOffset;
+    private final Map<String, String> nameToId;
+    private final TimezoneSearch search;
+
+    private TimezoneIndex(final String locale, final String system, final String[] names, final String[] ids,
+            final String[] aliasIds, final int[] aliasOf, final TimezoneSearch search, final long now) {
+        this.locale = locale;
+        this.system = system;
+        this.hour = now / MILLIS_PER_HOUR;
+        this.names = names;
+        this.ids = ids;
+        this.aliasIds = aliasIds;
+        this.aliasOf = aliasOf;
+
+        final TreeMap<Integer, List<String>> buckets = new TreeMap<Integer, List<String>>();
+        final Map<String, String> nameToId = new HashMap<String, String>();
+        for (int idx = 0; idx < names.length; idx++) {
+            final int millisOffset = TimeZone.getTimeZone(ids[idx]).getOffset(now);
+            List<String> bucket = buckets.get(millisOffset);
+            if (bucket == null) {
+                bucket = new ArrayList<String>();
+                buckets.put(millisOffset, bucket);
+            }
+            bucket.add(names[idx]);
+            nameToId.put(names[idx], ids[idx]);
+        }
+        this.offsets = new int[buckets.size()];
+        this.namesByOffset = new ArrayList<List<String>>(buckets.size());
+        int bucketIdx = 0;
+        for (final Map.Entry<Integer, List<String>> bucket : buckets.entrySet()) {
+            Collections.sort(bucket.getValue());
+            offsets[bucketIdx++] = bucket.getKey();
+            namesByOffset.add(Collections.unmodifiableList(bucket.getValue()));
+        }
+
+        // the other zones are only found by searching, as their city and the name they share
+        final String[] labels = new String[names.length + aliasIds.length];
+        final String[][] texts = new String[labels.length][];
+        for (int idx = 0; idx < names.length; idx++) {
+            labels[idx] = names[idx];
+            texts[idx] = new String[] { names[idx], ids[idx] };
+        }
+        for (int idx = 0; idx < aliasIds.length; idx++) {
+            final String label = cityOf(aliasIds[idx]) + " (" + names[aliasOf[idx]] + ")";
+            labels[names.length + idx] = label;
+            texts[names.length + idx] = new String[] { aliasIds[idx] };
+            if (!nameToId.containsKey(label)) {
+                nameToId.put(label, aliasIds[idx]);
+            }
+        }
+        this.nameToId = Collections.unmodifiableMap(nameToId);
+        this.search = search != null ? search : new TimezoneSearch(labels, texts);
+    }
+
+    /**
+     * Starts loading or building the index in the background, unless the
+     * one we have is still good.  Call it early, so the index is ready by
+     * the time it is wanted.
+     */
+    public static synchronized void prepare(final Context context) {
+        if (pending != null && !pending.isDone()) {
+            return;
+        }
+        final TimezoneIndex previous = current;
+        if (previous != null && previous.isCurrent(System.currentTimeMillis())) {
+            return;
+        }
+        final File file = new File(context.getApplicationContext().getFilesDir(), "WorldClocks.timezones");
+        pending = builder.submit(new Callable<TimezoneIndex>() {
+            @Override
+            public TimezoneIndex call() {
+                final TimezoneIndex index = load(file, previous);
+                current = index;
+                return index;
+            }
+        });
+    }
+
+    /**
+     * Returns the latest index.  If that is out of date, a new one is
+     * started and swapped in once it's ready, and this one is returned
+     * meanwhile.  Only waits when there has never been one.
+     */
+    public static TimezoneIndex get(final Context context) {
+        final Future<TimezoneIndex> index;
+        synchronized (TimezoneIndex.class) {
+            prepare(context);
+            if (current != null) {
+                return current;
+            }
+            index = pending;
+        }
+        try {
+            return index.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** Number of distinct offsets, which are numbered from the furthest west. */
+    public int size() {
+        return offsets.length;
+    }
+
+    /** The given bucket's offset from UTC, in milliseconds. */
+    public int getOffset(final int bucket) {
+        return offsets[bucket];
+    }
+
+    /** Display names of the zones at the given bucket's offset, sorted. */
+    public List<String> getNames(final int bucket) {
+        return namesByOffset.get(bucket);
+    }
+
+    /** Bucket of the given offset from UTC, in milliseconds, or -1 if no zone has it. */
+    public int indexOfOffset(final int millisOffset) {
+        final int idx = Arrays.binarySearch(offsets, millisOffset);
+        return idx < 0 ? -1 : idx;
+    }
+
+    /** The timezone ID behind the given display name, or search result. */
+    public String getId(final String name) {
+        return nameToId.get(name);
+    }
+
+    /** Searches every zone, including the ones which share a display name with another. */
+    public TimezoneSearch getSearch() {
+        return search;
+    }
+
+    /** The last part of the given ID, which is usually a city, as it would be written. */
+    private static String cityOf(final String id) {
+        return id.substring(id.lastIndexOf('/') + 1).replace('_', ' ');
+    }
+
+    private boolean isCurrent(final long now) {
+        return locale.equals(Locale.getDefault().toString()) && hour == now / MILLIS_PER_HOUR;
+    }
+
+    /**
+     * Reuses the names from the previous index or the saved one, if they
+     * are for this locale and system, and otherwise works them all out.
+     */
+    private static TimezoneIndex load(final File file, final TimezoneIndex previous) {
+        final String locale = Locale.getDefault().toString();
+        final String system = Build.FINGERPRINT;
+        final long now = System.currentTimeMillis();
+        if (previous != null && previous.locale.equals(locale) && previous.system.equals(system)) {
+            return new TimezoneIndex(locale, system, previous.names, previous.ids, previous.aliasIds,
+                    previous.aliasOf, previous.search, now);
+        }
+        final TimezoneIndex saved = read(file, locale, system, now);
+        if (saved != null) {
+            return saved;
+        }
+
+        final List<String> names = new ArrayList<String>();
+        final List<String> ids = new ArrayList<String>();
+        final List<String> aliasIds = new ArrayList<String>();
+        final List<Integer> aliasOf = new ArrayList<Integer>();
+        final Map<String, Integer> seen = new HashMap<String, Integer>();
+        final Locale displayLocale = Locale.getDefault();
+        for (final String timezone : TimeZone.getAvailableIDs()) {
+            final TimeZone tz = TimeZone.getTimeZone(timezone);
+            final boolean isDaylight = tz.useDaylightTime();
+            final String timezoneName = tz.getDisplayName(isDaylight, TimeZone.LONG, displayLocale);
+            // the first zone to claim a name keeps it; the rest can still be searched for by city
+            final Integer existing = seen.get(timezoneName);
+            if (existing != null) {
+                if (timezone.indexOf('/') != -1) {
+                    aliasIds.add(timezone);
+                    aliasOf.add(existing);
+                }
+                continue;
+            }
+            seen.put(timezoneName, names.size());
+            names.add(timezoneName);
+            ids.add(timezone);
+        }
+        final int[] aliasOfArray = new int[aliasOf.size()];
+        for (int idx = 0; idx < aliasOfArray.length; idx++) {
+            aliasOfArray[idx] = aliasOf.get(idx);
+        }
+        final TimezoneIndex built = new TimezoneIndex(locale, system, names.toArray(new String[names.size()]),
+                ids.toArray(new String[ids.size()]), aliasIds.toArray(new String[aliasIds.size()]), aliasOfArray,
+                null, now);
+        built.write(file);
+        return built;
+    }
+
+    /** Reads the saved index, or returns null if it's missing or was made for a different locale or system. */
+    private static TimezoneIndex read(final File file, final String locale, final String system, final long now) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(locale)
+                    || !in.readUTF().equals(system)) {
+                return null;
+            }
+            final int count = in.readInt();
+            final String[] names = new String[count];
+            final String[] ids = new String[count];
+            for (int idx = 0; idx < count; idx++) {
+                names[idx] = in.readUTF();
+                ids[idx] = in.readUTF();
+            }
+            final int aliasCount = in.readInt();
+            final String[] aliasIds = new String[aliasCount];
+            final int[] aliasOf = new int[aliasCount];
+            for (int idx = 0; idx < aliasCount; idx++) {
+                aliasIds[idx] = in.readUTF();
+                aliasOf[idx] = in.readInt();
+                if (aliasOf[idx] < 0 || aliasOf[idx] >= count) {
+                    return null;
+                }
+            }
+            return new TimezoneIndex(locale, system, names, ids, aliasIds, aliasOf, null, now);
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /** Saves the index in one rename, so it is never seen half written. */
+    private void write(final File file) {
+        final File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 8192));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(locale);
+            out.writeUTF(system);
+            out.writeInt(names.length);
+            for (int idx = 0; idx < names.length; idx++) {
+                out.writeUTF(names[idx]);
+                out.writeUTF(ids[idx]);
+            }
+            out.writeInt(aliasIds.length);
+            for (int idx = 0; idx < aliasIds.length; idx++) {
+                out.writeUTF(aliasIds[idx]);
+                out.writeInt(aliasOf[idx]);
+            }
+            out.close();
+            out = null;
+            temp.renameTo(file);
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds timezones by what the user types, matching it against the words
+ * of each zone's display name and of its ID, so "tokyo" finds
+ * Asia/Tokyo.  Every word is indexed by its trigrams, and all the words
+ * are also kept sorted so a word too short to have a trigram can be found
+ * as a prefix.  That means a query only ever looks at the zones which
+ * share something with it.  When nothing contains a word of the query,
+ * zones which share at least half of its trigrams are offered instead,
+ * which gets past most typos.
+ *
+ * Built once, along with its {@link TimezoneIndex}, and never changed
+ * after; each search box keeps its own {@link Session}.
+ *
+ * @author dpadgett
+ */
+public final class TimezoneSearch {
+
+    private static final int MAX_RESULTS = 50;
+
+    private static final int SCORE_WORD = 100;
+    private static final int SCORE_PREFIX = 60;
+    private static final int SCORE_CONTAINS = 30;
+    private static final int SCORE_FUZZY = 10;
+
+    private final String[] labels;
+    // the normalized words of each entry
+    private final String[][] words;
+    // entries containing each trigram, in ascending order
+    private final Map<String, int[]> trigrams;
+    // every distinct word, sorted, and the entries containing each
+    private final String[] sortedWords;
+    private final int[][] wordEntries;
+
+    /**
+     * Indexes the given entries.  Each is shown as its label, and found by
+     * any of the words in its texts.
+     */
+    TimezoneSearch(final String[] labels, final String[][] texts) {
+        this.labels = labels;
+        this.words = new String[labels.length][];
+        final Map<String, List<Integer>> byTrigram = new HashMap<String, List<Integer>>();
+        final TreeMap<String, List<Integer>> byWord = new TreeMap<String, List<Integer>>();
+        for (int entry = 0; entry < labels.length; entry++) {
+            final List<String> entryWords = new ArrayList<String>();
+            for (final String text : texts[entry]) {
+                for (final String word : split(text)) {
+                    if (!entryWords.contains(word)) {
+                        entryWords.add(word);
+                    }
+                }
+            }
+            words[entry] = entryWords.toArray(new String[entryWords.size()]);
+            for (final String word : words[entry]) {
+                addPosting(byWord, word, entry);
+                for (int idx = 0; idx + 3 <= word.length(); idx++) {
+                    addPosting(byTrigram, word.substring(idx, idx + 3), entry);
+                }
+            }
+        }
+
+        this.trigrams = new HashMap<String, int[]>(byTrigram.size() * 2);
+        for (final Map.Entry<String, List<Integer>> posting : byTrigram.entrySet()) {
+            trigrams.put(posting.getKey(), toArray(posting.getValue()));
+        }
+        this.sortedWords = byWord.keySet().toArray(new String[byWord.size()]);
+        this.wordEntries = new int[sortedWords.length][];
+        for (int idx = 0; idx < sortedWords.length; idx++) {
+            wordEntries[idx] = toArray(byWord.get(sortedWords[idx]));
+        }
+    }
+
+    /**
+     * One search box's worth of searching.  Remembers its last query, so
+     * when the user types more it only has to narrow down the zones which
+     * already matched.
+     */
+    public final class Session {
+        private String lastQuery;
+        private int[] lastMatches;
+        // whether typing more onto the last query can only rule zones out
+        private boolean lastNarrowable;
+        private boolean fuzzy;
+
+        // scratch space, one slot per entry
+        private final int[] scores = new int[labels.length];
+        private final int[] hits = new int[labels.length];
+
+        /** Returns the labels of the best matches for the given text, best first. */
+        public List<String> search(final String query) {
+            final String[] terms = split(query);
+            if (terms.length == 0) {
+                lastQuery = null;
+                return Collections.emptyList();
+            }
+
+            final String normalized = query.toLowerCase(Locale.ENGLISH);
+            int[] matches;
+            if (lastQuery != null && lastNarrowable && normalized.startsWith(lastQuery)) {
+                matches = matchAll(terms, lastMatches);
+                if (fuzzy || matches.length == 0) {
+                    // a typo, which is looked for among every zone, not just these
+                    matches = matchAll(terms, null);
+                }
+            } else {
+                matches = matchAll(terms, null);
+            }
+
+            lastQuery = normalized;
+            lastMatches = matches;
+            // a short term only matches the starts of words, so one letter
+            // more can bring in zones which have it further in
+            lastNarrowable = !fuzzy && terms[terms.length - 1].length() >= 3;
+            return rank(matches);
+        }
+
+        /** Scores afresh the given entries, or all of them if null, which match every term. */
+        private int[] matchAll(final String[] terms, final int[] within) {
+            Arrays.fill(scores, 0);
+            fuzzy = false;
+            int[] matches = within;
+            for (final String term : terms) {
+                matches = match(term, matches);
+                if (matches.length == 0) {
+                    break;
+                }
+            }
+            return matches;
+        }
+
+        /**
+         * Narrows the given entries, or all of them if null, down to those
+         * matching the given term, adding to their scores.
+         */
+        private int[] match(final String term, final int[] within) {
+            if (within != null) {
+                final int[] found = scoreAll(term, within);
+                if (found.length > 0 || term.length() < 3) {
+                    return found;
+                }
+            } else if (term.length() < 3) {
+                return scoreAll(term, prefixed(term));
+            }
+
+            // count how many of the term's trigrams each entry has
+            final int wanted = term.length() - 2;
+            final List<Integer> touched = new ArrayList<Integer>();
+            for (int idx = 0; idx < wanted; idx++) {
+                final int[] posting = trigrams.get(term.substring(idx, idx + 3));
+                if (posting == null) {
+                    continue;
+                }
+                for (final int entry : posting) {
+                    if (hits[entry]++ == 0) {
+                        touched.add(entry);
+                    }
+                }
+            }
+            final List<Integer> complete = new ArrayList<Integer>();
+            final List<Integer> partial = new ArrayList<Integer>();
+            for (final int entry : touched) {
+                if (within == null || Arrays.binarySearch(within, entry) >= 0) {
+                    if (hits[entry] >= wanted) {
+                        complete.add(entry);
+                    } else if (hits[entry] * 2 >= wanted) {
+                        partial.add(entry);
+                    }
+                }
+            }
+            int[] found = scoreAll(term, sorted(complete));
+            if (found.length == 0) {
+                // nothing has it as written, so settle for what's close
+                fuzzy = true;
+                partial.addAll(complete);
+                found = sorted(partial);
+                for (final int entry : found) {
+                    scores[entry] += SCORE_FUZZY * hits[entry] / wanted;
+                }
+            }
+            for (final int entry : touched) {
+                hits[entry] = 0;
+            }
+            return found;
+        }
+
+        /** Keeps the given entries with a word containing the term, adding to their scores. */
+        private int[] scoreAll(final String term, final int[] entries) {
+            int kept = 0;
+            final int[] found = new int[entries.length];
+            for (final int entry : entries) {
+                final int score = score(entry, term);
+                if (score > 0) {
+                    scores[entry] += score;
+                    found[kept++] = entry;
+                }
+            }
+            final int[] trimmed = new int[kept];
+            System.arraycopy(found, 0, trimmed, 0, kept);
+            return trimmed;
+        }
+
+        private List<String> rank(final int[] matches) {
+            final Integer[] order = new Integer[matches.length];
+            for (int idx = 0; idx < matches.length; idx++) {
+                order[idx] = matches[idx];
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer lhs, final Integer rhs) {
+                    if (scores[lhs] != scores[rhs]) {
+                        return scores[rhs] - scores[lhs];
+                    }
+                    if (labels[lhs].length() != labels[rhs].length()) {
+                        return labels[lhs].length() - labels[rhs].length();
+                    }
+                    return labels[lhs].compareTo(labels[rhs]);
+                }
+            });
+            final List<String> results = new ArrayList<String>(Math.min(order.length, MAX_RESULTS));
+            for (int idx = 0; idx < order.length && idx < MAX_RESULTS; idx++) {
+                results.add(labels[order[idx]]);
+            }
+            return results;
+        }
+    }
+
+    public Session newSession() {
+        return new Session();
+    }
+
+    /** How well the given entry's best word matches the term, or 0 if none contain it. */
+    private int score(final int entry, final String term) {
+        int best = 0;
+        for (final String word : words[entry]) {
+            if (word.equals(term)) {
+                return SCORE_WORD;
+            } else if (word.startsWith(term)) {
+                best = Math.max(best, SCORE_PREFIX);
+            } else if (best == 0 && word.contains(term)) {
+                best = SCORE_CONTAINS;
+            }
+        }
+        return best;
+    }
+
+    /** Entries with a word starting with the given prefix, in ascending order. */
+    private int[] prefixed(final String prefix) {
+        int idx = Arrays.binarySearch(sortedWords, prefix);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        final List<Integer> entries = new ArrayList<Integer>();
+        final boolean[] seen = new boolean[labels.length];
+        for (; idx < sortedWords.length && sortedWords[idx].startsWith(prefix); idx++) {
+            for (final int entry : wordEntries[idx]) {
+                if (!seen[entry]) {
+                    seen[entry] = true;
+                    entries.add(entry);
+                }
+            }
+        }
+        return sorted(entries);
+    }
+
+    /** Lower cases the given text and splits it into words of letters and digits. */
+    static String[] split(final String text) {
+        final List<String> words = new ArrayList<String>();
+        final String lower = text.toLowerCase(Locale.ENGLISH);
+        int start = -1;
+        for (int idx = 0; idx <= lower.length(); idx++) {
+            final boolean inWord = idx < lower.length() && Character.isLetterOrDigit(lower.charAt(idx));
+            if (inWord && start == -1) {
+                start = idx;
+            } else if (!inWord && start != -1) {
+                words.add(lower.substring(start, idx));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    private static void addPosting(final Map<String, List<Integer>> postings, final String key, final int entry) {
+        List<Integer> posting = postings.get(key);
+        if (posting == null) {
+            posting = new ArrayList<Integer>();
+            postings.put(key, posting);
+        }
+        // entries are added in order, so a repeat can only be the last one
+        if (posting.isEmpty() || posting.get(posting.size() - 1) != entry) {
+            posting.add(entry);
+        }
+    }
+
+    private static int[] toArray(final List<Integer> values) {
+        final int[] array = new int[values.size()];
+        for (int idx = 0; idx < array.length; idx++) {
+            array[idx] = values.get(idx);
+        }
+        return array;
+    }
+
+    private static int[] sorted(final List<Integer> values) {
+        final int[] array = toArray(values);
+        Arrays.sort(array);
+        return array;
+    }
+}
@@ -0,0 +1,276 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.timer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+/**
+ * Keeps copies of recently used alarm tones in the app's own storage, so
+ * the alarm can play from a local file instead of going through the media
+ * provider to whatever storage the tone lives on.  Entries are named by
+ * the tone's URI, and the cache remembers which tone, as of which
+ * modification time, each one was copied from.  An entry is only handed
+ * out while that still matches the tone's source, so an edited tone, or
+ * a default alarm pointed somewhere else, is never played from a stale
+ * copy.  Checking the source takes a provider query, so
+ * {@link #lookup} is meant for getting the alarm ready ahead of time,
+ * not for the moment it goes off.
+ * The least recently used entries are evicted once the total passes
+ * {@link #MAX_BYTES}; a file's modification time doubles as its last use.
+ *
+ * Copies are made on a background thread of their own, so a large tone
+ * never holds up the state writer.
+ *
+ * @author dpadgett
+ */
+public class ToneCache {
+
+    private static final long MAX_BYTES = 8L * 1024 * 1024;
+    private static final String SUFFIX = ".tone";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // longer URIs aren't cached, rather than risk the file system's limit
+    private static final int MAX_NAME_LENGTH = 200;
+    // which source, as of when, each entry was copied from
+    private static final String PREFS_NAME = "ToneCache";
+
+    private static ToneCache instance;
+
+    private final Context context;
+    private final StatePersister persister;
+    private final File dir;
+    // a single thread, so a tone asked for twice is only copied once
+    private final ExecutorService copier;
+
+    private ToneCache(final Context context) {
+        this.context = context;
+        this.persister = StatePersister.get(context);
+        this.dir = new File(context.getCacheDir(), "tones");
+        this.copier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "ToneCache");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized ToneCache get(final Context context) {
+        if (instance == null) {
+            instance = new ToneCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the cached copy of the given tone, marking it as just used,
+     * if it is a copy of the tone as it is now.  Otherwise returns null,
+     * and has an up to date copy made in the background.
+     */
+    public File lookup(final Uri uri) {
+        final String name = entryName(uri);
+        if (name == null) {
+            return null;
+        }
+        final File entry = new File(dir, name);
+        final String stamp = sourceStamp(uri);
+        if (stamp != null && entry.isFile()
+                && stamp.equals(persister.getSharedPreferences(PREFS_NAME).getString(name, null))) {
+            entry.setLastModified(System.currentTimeMillis());
+            return entry;
+        }
+        warm(uri);
+        return null;
+    }
+
+    /**
+     * Copies the given tone into the cache in the background, unless the
+     * copy there is of the tone as it is now.
+     */
+    public void warm(final Uri uri) {
+        copier.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String name = entryName(uri);
+                final String stamp = name != null ? sourceStamp(uri) : null;
+                if (stamp == null) {
+                    return;
+                }
+                if (new File(dir, name).isFile()
+                        && stamp.equals(persister.getSharedPreferences(PREFS_NAME).getString(name, null))) {
+                    return;
+                }
+                if (copy(uri, name)) {
+                    persister.edit(PREFS_NAME).putString(name, stamp).commit();
+                }
+                evict();
+            }
+        });
+    }
+
+    /** Copies the given tone to the given entry, and returns whether it did. */
+    private boolean copy(final Uri uri, final String name) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return false;
+        }
+        final File temp = new File(dir, name + TEMP_SUFFIX);
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = context.getContentResolver().openInputStream(uri);
+            if (in == null) {
+                return false;
+            }
+            out = new FileOutputStream(temp);
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.getFD().sync();
+            out.close();
+            out = null;
+            // only a complete copy ever has the entry's name
+            if (temp.renameTo(new File(dir, name))) {
+                return true;
+            }
+            temp.delete();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        } catch (final SecurityException e) {
+            // can't read it, so the alarm will have to go through the provider
+            e.printStackTrace();
+            temp.delete();
+        } finally {
+            Closeables.closeQuietly(in);
+            Closeables.closeQuietly(out);
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits, along
+     * with anything left over from a copy which didn't finish.
+     */
+    private void evict() {
+        final File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long total = 0;
+        for (final File entry : entries) {
+            if (entry.getName().endsWith(TEMP_SUFFIX)) {
+                // copies only run on this thread, so none is in progress
+                entry.delete();
+            } else {
+                total += entry.length();
+            }
+        }
+        if (total <= MAX_BYTES) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long lhsUsed = lhs.lastModified();
+                final long rhsUsed = rhs.lastModified();
+                return lhsUsed < rhsUsed ? -1 : (lhsUsed == rhsUsed ? 0 : 1);
+            }
+        });
+        final SharedPreferences.Editor stamps = persister.edit(PREFS_NAME);
+        for (int idx = 0; idx < entries.length && total > MAX_BYTES; idx++) {
+            if (entries[idx].getName().endsWith(SUFFIX)) {
+                total -= entries[idx].length();
+                entries[idx].delete();
+                stamps.remove(entries[idx].getName());
+            }
+        }
+        stamps.commit();
+    }
+
+    /** Names the entry for the given tone, or returns null if it can't have one. */
+    private static String entryName(final Uri uri) {
+        final String name = Uri.encode(uri.toString()) + SUFFIX;
+        return name.length() <= MAX_NAME_LENGTH ? name : null;
+    }
+
+    /**
+     * Describes which tone the given URI plays as of now, and when that
+     * last changed, or returns null if the tone can't be found.  The
+     * default alarm is followed to whatever tone it currently points at.
+     */
+    private String sourceStamp(final Uri uri) {
+        Uri source = uri;
+        if (RingtoneManager.isDefault(source)) {
+            source = RingtoneManager.getActualDefaultRingtoneUri(context,
+                    RingtoneManager.getDefaultType(source));
+            if (source == null) {
+                return null;
+            }
+        }
+        final long modified = sourceModified(source);
+        return modified == -1 ? null : source.toString() + '@' + modified;
+    }
+
+    /** Modification time of the given tone's source, or -1 if it can't be found. */
+    private long sourceModified(final Uri source) {
+        if ("file".equals(source.getScheme())) {
+            final File file = new File(source.getPath());
+            return file.isFile() ? file.lastModified() : -1;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(source,
+                    new String[] { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DATE_MODIFIED },
+                    null, null, null);
+            if (cursor == null || !cursor.moveToFirst()) {
+                return -1;
+            }
+            final String path = cursor.getString(0);
+            if (path != null && new File(path).isFile()) {
+                return new File(path).lastModified();
+            }
+            // in seconds, but it's only ever compared with itself
+            return cursor.getLong(1);
+        } catch (final RuntimeException e) {
+            // providers throw all sorts for URIs they don't like
+            e.printStackTrace();
+            return -1;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
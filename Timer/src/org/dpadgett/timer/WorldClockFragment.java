@@ -31,6 +31,8 @@ import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -66,6 +68,8 @@ public class WorldClockFragment extends Fragment {
         final View rootView = inflater.inflate(R.layout.world_clock, container, false);
         finder = ResourceFinders.from(rootView);
         context = rootView.getContext();
+        // the timezone picker needs this, and it takes a while to put together
+        TimezoneIndex.prepare(context);
         final Button addClockButton = (Button) finder.findViewById(R.id.addClockButton);
         addClockButton.setOnClickListener(new OnClickListener() {
             @Override
@@ -80,7 +84,7 @@ public class WorldClockFragment extends Fragment {
         });
 
         clockList.clear();
-        final SharedPreferences prefs = context.getSharedPreferences("WorldClocks", Context.MODE_PRIVATE);
+        final SharedPreferences prefs = StatePersister.get(context).getSharedPreferences("WorldClocks");
         final int numClocks = prefs.getInt("numClocks", -1);
         if (numClocks >= 0) {
             for (int idx = 0; idx < numClocks; idx++) {
@@ -95,6 +99,7 @@ public class WorldClockFragment extends Fragment {
 
         final ListView clocksList = (ListView) finder.findViewById(R.id.clocksList);
         clocksList.setAdapter(clocksListAdapter);
+        clocksList.setRecyclerListener(clocksListAdapter);
         clocksList.setOnItemClickListener(new OnItemClickListener() {
             @Override
             public void onItemClick(final AdapterView<?> parent, final View view, final int position, final long id) {
@@ -124,29 +129,8 @@ public class WorldClockFragment extends Fragment {
     private void newClockDialog(final int position) {
         final AlertDialog.Builder builder = new AlertDialog.Builder(context);
         builder.setTitle(context.getString(R.string.world_clock_select_timezone));
-        final Map<String, String> timezoneNameToId = new HashMap<String, String>();
-        final Set<Integer> timezones = new TreeSet<Integer>();
-        final Map<Integer, List<String>> offsetToName = new HashMap<Integer, List<String>>();
-        final long currentTime = System.currentTimeMillis();
-
-        for (final String timezone : TimeZone.getAvailableIDs()) {
-            final TimeZone tz = TimeZone.getTimeZone(timezone);
-            final boolean isDaylight = tz.useDaylightTime();
-            final String timezoneName = tz.getDisplayName(isDaylight, TimeZone.LONG, Locale.getDefault());
-            if (timezoneNameToId.containsKey(timezoneName)) {
-                continue;
-            }
-            final int millisOffset = tz.getOffset(currentTime);
-            timezones.add(millisOffset);
-            if (!offsetToName.containsKey(millisOffset)) {
-                offsetToName.put(millisOffset, new ArrayList<String>());
-            }
-            offsetToName.get(millisOffset).add(timezoneName);
-            timezoneNameToId.put(timezoneName, timezone);
-        }
-        for (final List<String> names : offsetToName.values()) {
-            Collections.sort(names);
-        }
+        // normally built in the background long before now
+        final TimezoneIndex index = TimezoneIndex.get(context);
         if (position > -1) {
             builder.setPositiveButton(context.getString(R.string.world_clock_button_remove),
                     new DialogInterface.OnClickListener() {
@@ -155,8 +139,8 @@ public class WorldClockFragment extends Fragment {
                             clockList.remove(position);
                             clocksListAdapter.notifyDataSetChanged();
 
-                            final SharedPreferences.Editor prefs = context.getSharedPreferences("WorldClocks",
-                                    Context.MODE_PRIVATE).edit();
+                            final SharedPreferences.Editor prefs = StatePersister.get(context).edit(
+                                    "WorldClocks");
                             prefs.putInt("numClocks", clockList.size());
                             int idx;
                             for (idx = position; idx < clockList.size(); idx++) {
@@ -181,15 +165,14 @@ public class WorldClockFragment extends Fragment {
         final TextView sliderView = (TextView) tzView.findViewById(R.id.timezoneLabel);
 
         final SeekBar timezoneSeeker = (SeekBar) tzView.findViewById(R.id.timezoneSeeker);
-        final List<Integer> timezonesList = new ArrayList<Integer>(timezones);
-        timezoneSeeker.setMax(timezonesList.size() - 1);
+        timezoneSeeker.setMax(index.size() - 1);
         if (position > -1) {
-            final int offset = TimeZone.getTimeZone(clockList.get(position)).getOffset(currentTime);
-            timezoneSeeker.setProgress(timezonesList.indexOf(offset));
+            final int offset = TimeZone.getTimeZone(clockList.get(position)).getOffset(System.currentTimeMillis());
+            timezoneSeeker.setProgress(index.indexOfOffset(offset));
         } else {
-            timezoneSeeker.setProgress(timezonesList.indexOf(0));
+            timezoneSeeker.setProgress(index.indexOfOffset(0));
         }
-        timezoneSeeker.setOnSeekBarChangeListener(new OnSeekBarChangeListener() {
+        final OnSeekBarChangeListener seekListener = new OnSeekBarChangeListener() {
 
             // initialize the timezoneSeeker
             {
@@ -199,8 +182,8 @@ public class WorldClockFragment extends Fragment {
             @Override
             public void onProgressChanged(final SeekBar seekBar, final int progress, final boolean fromUser) {
                 adapter.clear();
-                adapter.addAll(offsetToName.get(timezonesList.get(progress)));
-                final int millisOffset = timezonesList.get(progress);
+                adapter.addAll(index.getNames(progress));
+                final int millisOffset = index.getOffset(progress);
                 String offset = String.format("%02d:%02d", Math.abs(millisOffset / 1000 / 60 / 60),
                         Math.abs(millisOffset / 1000 / 60) % 60);
                 if (millisOffset / 1000 / 60 / 60 < 0) {
@@ -218,6 +201,34 @@ public class WorldClockFragment extends Fragment {
             @Override
             public void onStopTrackingTouch(final SeekBar seekBar) {
             }
+        };
+        timezoneSeeker.setOnSeekBarChangeListener(seekListener);
+
+        // searching replaces picking by offset for as long as there's something typed
+        final View offsetSelector = tzView.findViewById(R.id.layout_offsetSelector);
+        final TimezoneSearch.Session search = index.getSearch().newSession();
+        final EditText searchText = (EditText) tzView.findViewById(R.id.timezoneSearch);
+        searchText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(final CharSequence s, final int start, final int count, final int after) {
+            }
+
+            @Override
+            public void onTextChanged(final CharSequence s, final int start, final int before, final int count) {
+            }
+
+            @Override
+            public void afterTextChanged(final Editable s) {
+                final String query = s.toString();
+                if (query.trim().length() == 0) {
+                    offsetSelector.setVisibility(View.VISIBLE);
+                    seekListener.onProgressChanged(timezoneSeeker, timezoneSeeker.getProgress(), false);
+                    return;
+                }
+                offsetSelector.setVisibility(View.GONE);
+                adapter.clear();
+                adapter.addAll(search.search(query));
+            }
         });
         builder.setView(tzView);
         final AlertDialog alert = builder.create();
@@ -229,7 +240,7 @@ public class WorldClockFragment extends Fragment {
                     final int selectedPosition,
                     final long id) {
                 final String timezoneName = adapter.getItem(selectedPosition);
-                final String timezone = timezoneNameToId.get(timezoneName);
+                final String timezone = index.getId(timezoneName);
                 addNewClock(timezone, position);
                 alert.dismiss();
             }
@@ -251,13 +262,17 @@ public class WorldClockFragment extends Fragment {
         clocksListAdapter.notifyDataSetChanged();
 
         // save to prefs
-        final SharedPreferences.Editor prefs = context.getSharedPreferences("WorldClocks", Context.MODE_PRIVATE).edit();
+        final SharedPreferences.Editor prefs = StatePersister.get(context).edit("WorldClocks");
         prefs.putInt("numClocks", clockList.size());
         prefs.putString("clock" + position, timeZone);
         prefs.commit();
     }
 
-    private class ClockListAdapter extends BaseAdapter {
+    /**
+     * Lists the clocks, reusing rows as they scroll.  A row only has its tick
+     * listener while it's in use, so rows waiting to be reused cost nothing.
+     */
+    private class ClockListAdapter extends BaseAdapter implements AbsListView.RecyclerListener {
 
         public ClockListAdapter() {
         }
@@ -275,39 +290,65 @@ public class WorldClockFragment extends Fragment {
         }
 
         public View getView(final int position, final View convertView, final ViewGroup parent) {
-            final String timezone = clockList.get(position);
+            View row = convertView;
+            if (row == null) {
+                row = LayoutInflater.from(context).inflate(R.layout.single_world_clock, parent, false);
+                row.setTag(new ClockRow(row));
+            }
+            ((ClockRow) row.getTag()).bind(clockList.get(position));
+            return row;
+        }
 
-            final LinearLayout newClock = (LinearLayout) LayoutInflater.from(context).inflate(
-                    R.layout.single_world_clock, parent, false);
+        @Override
+        public void onMovedToScrapHeap(final View view) {
+            final Object row = view.getTag();
+            if (row instanceof ClockRow) {
+                ((ClockRow) row).unbind();
+            }
+        }
+    }
 
-            final AnalogClockWithTimezone analogClock = (AnalogClockWithTimezone) newClock
-                    .findViewById(R.id.analogClock);
-            analogClock.setTimezone(timezone);
+    /** The views of one row of the clock list, and the timezone it is showing. */
+    private static final class ClockRow implements AnalogClockWithTimezone.OnTickListener {
+        private final AnalogClockWithTimezone analogClock;
+        private final TextView clock;
+        private final TextView timezoneText;
+        private final SimpleDateFormat format = new SimpleDateFormat("h:mm:ss a");
+        private final Date now = new Date();
+        private String timezone;
+        private boolean ticking;
+
+        private ClockRow(final View row) {
+            analogClock = (AnalogClockWithTimezone) row.findViewById(R.id.analogClock);
+            clock = (TextView) row.findViewById(R.id.digitalClock);
+            timezoneText = (TextView) row.findViewById(R.id.timezone);
+        }
 
-            final TextView clock = (TextView) newClock.findViewById(R.id.digitalClock);
-            analogClock.addOnTickListener(new AnalogClockWithTimezone.OnTickListener() {
-                @Override
-                public void onTick() {
-                    updateClockTextView(clock, timezone);
-                }
-            });
-
-            final TextView timezoneText = (TextView) newClock.findViewById(R.id.timezone);
-            final TimeZone tz = TimeZone.getTimeZone(timezone);
-            final boolean isDaylight = tz.useDaylightTime();
-            final String timezoneName = tz.getDisplayName(isDaylight, TimeZone.LONG, Locale.getDefault());
-            timezoneText.setText(timezoneName);
-            updateClockTextView(clock, timezone);
-            return newClock;
+        private void bind(final String timezone) {
+            if (!timezone.equals(this.timezone)) {
+                this.timezone = timezone;
+                final TimeZone tz = TimeZone.getTimeZone(timezone);
+                analogClock.setTimezone(timezone);
+                format.setTimeZone(tz);
+                final boolean isDaylight = tz.useDaylightTime();
+                timezoneText.setText(tz.getDisplayName(isDaylight, TimeZone.LONG, Locale.getDefault()));
+            }
+            if (!ticking) {
+                analogClock.addOnTickListener(this);
+                ticking = true;
+            }
+            onTick();
         }
 
-    }
+        private void unbind() {
+            analogClock.removeOnTickListener(this);
+            ticking = false;
+        }
 
-    private void updateClockTextView(final TextView clockToUpdate, final String timezone) {
-        final SimpleDateFormat sdf = new SimpleDateFormat("h:mm:ss a");
-        final Date newDate = new Date(); // as a fallback
-        sdf.setTimeZone(TimeZone.getTimeZone(timezone));
-        final String toText = sdf.format(newDate).toLowerCase();
-        clockToUpdate.setText(toText);
+        @Override
+        public void onTick() {
+            now.setTime(System.currentTimeMillis());
+            clock.setText(format.format(now).toLowerCase());
+        }
     }
 }
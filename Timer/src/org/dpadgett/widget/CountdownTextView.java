@@ -16,19 +16,39 @@
 
 package org.dpadgett.widget;
 
+import org.dpadgett.timer.TimeSources;
+
 import android.content.Context;
-import android.graphics.Canvas;
 import android.util.AttributeSet;
+import android.view.View;
 import android.widget.TextView;
 
 public class CountdownTextView extends TextView {
 
-	// the timestamp which we are counting down to
+
+	// rounds up, so the display reaches zero just as the countdown does
+	private final DurationFormatter formatter =
+			new DurationFormatter(DurationFormatter.Precision.SECONDS, true);
+
+	// the units last shown, so unchanged text isn't set again
+	private long shownUnits = -1;
+
+	// how long before the end to start showing tenths of a second, or 0 to never show them
+	private long preciseFinishNanos = 0;
+
+	// the timestamp which we are counting down to, in elapsed realtime nanoseconds
 	private long endingTime = 0;
-	
-	// a prefix to prepend to the timer text
-	private String textPrefix = "";
 
+	// whether the page holding this view is the one being shown
+	private boolean userVisible = true;
+
+	private final Ticker.OnTickListener tickListener = new Ticker.OnTickListener() {
+		@Override
+		public void onTick() {
+			updateTicking();
+		}
+	};
+	
 	public CountdownTextView(Context context) {
 		super(context);
 	}
@@ -43,10 +63,32 @@ public class CountdownTextView extends TextView {
 
 	public void setEndingTime(long endingTime) {
 		this.endingTime  = endingTime;
+		updateTicking();
 	}
 	
 	public void setTextPrefix(String textPrefix) {
-		this.textPrefix = textPrefix;
+		formatter.setPrefix(textPrefix);
+		shownUnits = -1;
+	}
+
+	/**
+	 * Shows tenths of a second once the given time remains, ticking ten
+	 * times a second from then on; until then the text only changes on
+	 * whole seconds.  Zero turns this off.
+	 */
+	public void setPreciseFinish(long preciseFinishNanos) {
+		this.preciseFinishNanos = preciseFinishNanos;
+		updateTicking();
+	}
+
+	/**
+	 * Sets whether the page holding this view is the one being shown.
+	 * ViewPager keeps its neighbouring pages attached and visible, so
+	 * this is the only way we find out nobody can see us.
+	 */
+	public void setUserVisible(boolean userVisible) {
+		this.userVisible = userVisible;
+		updateTicking();
 	}
 	
 	public void forceUpdate(long timestamp) {
@@ -55,29 +97,67 @@ public class CountdownTextView extends TextView {
 	
 	private void setTimerText(long timestamp) {
 		long remaining = Math.max(0, endingTime - timestamp);
-		setText(textPrefix + getTimerText(remaining));
+		DurationFormatter.Precision precision = preciseFinishNanos > 0 && remaining <= preciseFinishNanos
+				? DurationFormatter.Precision.DECISECONDS
+				: DurationFormatter.Precision.SECONDS;
+		if (precision != formatter.getPrecision()) {
+			formatter.setPrecision(precision);
+			shownUnits = -1;
+		}
+		long units = formatter.toUnits(remaining);
+		if (units != shownUnits) {
+			shownUnits = units;
+			setText(formatter.getBuffer(), 0, formatter.format(remaining));
+		}
 	}
 
-	private void setTimerText() {
-		setTimerText(System.currentTimeMillis());
+	/**
+	 * Brings the text up to date and asks for a tick when it next changes,
+	 * or stops ticking once it reaches zero or can't be seen.
+	 */
+	private void updateTicking() {
+		if (!userVisible || getWindowVisibility() != VISIBLE || !isShown()) {
+			Ticker.get(getContext()).cancel(tickListener);
+			return;
+		}
+		long now = TimeSources.get().elapsedRealtimeNanos();
+		setTimerText(now);
+		long remaining = endingTime - now;
+		if (remaining <= 0) {
+			Ticker.get(getContext()).cancel(tickListener);
+			return;
+		}
+		// the text rounds up, so it changes once we are a whole unit lower
+		long nanosPerUnit = formatter.getPrecision().getNanosPerUnit();
+		long untilChange = remaining - (formatter.toUnits(remaining) - 1) * nanosPerUnit;
+		if (preciseFinishNanos > 0 && remaining > preciseFinishNanos) {
+			// the switch to tenths may come before the next whole second
+			untilChange = Math.min(untilChange, remaining - preciseFinishNanos);
+		}
+		Ticker.get(getContext()).schedule(tickListener, untilChange);
 	}
 
 	@Override
-	protected void onDraw(Canvas canvas) {
-		setTimerText();
-		super.onDraw(canvas);
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		updateTicking();
 	}
 
-	private static String getTimerText(long remainingTime) {
-		if (remainingTime % 1000 > 0) {
-			remainingTime += 1000;
-		}
-		remainingTime /= 1000;
-		long secs = remainingTime % 60;
-		remainingTime /= 60;
-		long mins = remainingTime % 60;
-		remainingTime /= 60;
-		long hours = remainingTime;
-		return String.format("%02d:%02d:%02d", hours, mins, secs);
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		Ticker.get(getContext()).cancel(tickListener);
+	}
+
+	@Override
+	protected void onWindowVisibilityChanged(int visibility) {
+		super.onWindowVisibilityChanged(visibility);
+		updateTicking();
+	}
+
+	@Override
+	protected void onVisibilityChanged(View changedView, int visibility) {
+		super.onVisibilityChanged(changedView, visibility);
+		updateTicking();
 	}
 }
@@ -0,0 +1,159 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.widget;
+
+/**
+ * Formats durations as hh:mm:ss with an optional fraction of a second,
+ * writing the digits into a buffer it owns instead of building Strings,
+ * so it can run every frame without allocating.  Hours never wrap; they
+ * just grow more digits.
+ * 
+ * The buffer is reused by every call, so each view should have its own
+ * formatter.  TextView.setText(char[], int, int) keeps a reference to the
+ * array rather than copying it, which is exactly what we want here.
+ * 
+ * @author dpadgett
+ */
+public class DurationFormatter {
+
+	public enum Precision {
+		SECONDS(0, 1000000000L),
+		DECISECONDS(1, 100000000L),
+		CENTISECONDS(2, 10000000L),
+		MILLISECONDS(3, 1000000L);
+
+		private final int fractionDigits;
+		private final long nanosPerUnit;
+		private final long unitsPerSecond;
+
+		private Precision(int fractionDigits, long nanosPerUnit) {
+			this.fractionDigits = fractionDigits;
+			this.nanosPerUnit = nanosPerUnit;
+			this.unitsPerSecond = 1000000000L / nanosPerUnit;
+		}
+
+		public long getNanosPerUnit() {
+			return nanosPerUnit;
+		}
+	}
+
+	// enough for every hour digit a long can hold, ":mm:ss" and ".fff"
+	private static final int MAX_DURATION_LENGTH = 19 + 6 + 4;
+
+	private Precision precision;
+	private final boolean roundUp;
+	private char[] buffer;
+	private int prefixLength;
+
+	/**
+	 * @param precision
+	 *            the smallest unit to show
+	 * @param roundUp
+	 *            whether partial units count as a whole one, as a countdown
+	 *            wants, rather than being dropped
+	 */
+	public DurationFormatter(Precision precision, boolean roundUp) {
+		this.precision = precision;
+		this.roundUp = roundUp;
+		this.buffer = new char[MAX_DURATION_LENGTH];
+	}
+
+	public Precision getPrecision() {
+		return precision;
+	}
+
+	public void setPrecision(Precision precision) {
+		this.precision = precision;
+	}
+
+	/** Sets text to put in front of every formatted duration. */
+	public void setPrefix(String prefix) {
+		if (buffer.length != prefix.length() + MAX_DURATION_LENGTH) {
+			buffer = new char[prefix.length() + MAX_DURATION_LENGTH];
+		}
+		prefix.getChars(0, prefix.length(), buffer, 0);
+		prefixLength = prefix.length();
+	}
+
+	/**
+	 * Returns the given duration in whole units of the current precision,
+	 * which is what decides the text; callers can compare this against the
+	 * last value to skip redundant updates.
+	 */
+	public long toUnits(long nanos) {
+		if (nanos <= 0) {
+			return 0;
+		}
+		if (roundUp) {
+			return (nanos - 1) / precision.nanosPerUnit + 1;
+		}
+		return nanos / precision.nanosPerUnit;
+	}
+
+	/**
+	 * Formats the given duration into {@link #getBuffer()}, after the
+	 * prefix, and returns the number of characters used.
+	 */
+	public int format(long nanos) {
+		final long units = toUnits(nanos);
+		long fraction = units % precision.unitsPerSecond;
+		long elapsed = units / precision.unitsPerSecond;
+		final int secs = (int) (elapsed % 60);
+		elapsed /= 60;
+		final int mins = (int) (elapsed % 60);
+		long hours = elapsed / 60;
+
+		int hourDigits = 2;
+		for (long remaining = hours / 100; remaining > 0; remaining /= 10) {
+			hourDigits++;
+		}
+		int pos = prefixLength + hourDigits;
+		for (int idx = pos - 1; idx >= prefixLength; idx--) {
+			buffer[idx] = (char) ('0' + hours % 10);
+			hours /= 10;
+		}
+		buffer[pos++] = ':';
+		pos = writeTwoDigits(mins, pos);
+		buffer[pos++] = ':';
+		pos = writeTwoDigits(secs, pos);
+		if (precision.fractionDigits > 0) {
+			buffer[pos++] = '.';
+			for (int idx = pos + precision.fractionDigits - 1; idx >= pos; idx--) {
+				buffer[idx] = (char) ('0' + fraction % 10);
+				fraction /= 10;
+			}
+			pos += precision.fractionDigits;
+		}
+		return pos;
+	}
+
+	/** Formats the given duration into a new String, for callers off the drawing path. */
+	public String formatToString(long nanos) {
+		return new String(buffer, 0, format(nanos));
+	}
+
+	/** The buffer {@link #format(long)} writes into, starting at index 0. */
+	public char[] getBuffer() {
+		return buffer;
+	}
+
+	private int writeTwoDigits(int value, int pos) {
+		buffer[pos] = (char) ('0' + value / 10);
+		buffer[pos + 1] = (char) ('0' + value % 10);
+		return pos + 2;
+	}
+}
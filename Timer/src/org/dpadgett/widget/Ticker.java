@@ -0,0 +1,159 @@
+/*  
+ * Copyright 2012 Dan Padgett
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.dpadgett.widget;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.WindowManager;
+
+/**
+ * Wakes up views when their displayed time is next due to change, on
+ * the main thread.  Every ticking view shares the one pending callback,
+ * which is always set for the earliest deadline; when nothing is
+ * registered nothing is scheduled at all.
+ * 
+ * Listeners only update their text and invalidate, so the actual redraw
+ * still waits for the next display frame.  Ticks are never closer
+ * together than one frame of the display, since anything faster could
+ * never be seen.
+ * 
+ * @author dpadgett
+ */
+public class Ticker {
+
+	public interface OnTickListener {
+		void onTick();
+	}
+
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	private static Ticker instance;
+
+	private final long frameIntervalNanos;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final ArrayList<OnTickListener> listeners = new ArrayList<OnTickListener>();
+	// uptime at which each listener is due, in the same order as listeners
+	private long[] dueTimes = new long[4];
+	// scratch space for the listeners being called back
+	private OnTickListener[] firing = new OnTickListener[4];
+	// uptime the pending callback is set for, or -1 if there is none
+	private long scheduledTime = -1;
+
+	private Ticker(Context context) {
+		float refreshRate = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE))
+				.getDefaultDisplay().getRefreshRate();
+		if (refreshRate < 10) {
+			// some emulators report nonsense
+			refreshRate = 60;
+		}
+		frameIntervalNanos = (long) (1000000000L / refreshRate);
+	}
+
+	/** Returns the ticker for the main thread; only call it from there. */
+	public static Ticker get(Context context) {
+		if (instance == null) {
+			instance = new Ticker(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/**
+	 * Calls the given listener once after the given delay, or one frame if
+	 * that is longer, replacing any tick it already had pending.
+	 */
+	public void schedule(OnTickListener listener, long delayNanos) {
+		delayNanos = Math.max(delayNanos, frameIntervalNanos);
+		// round up, so the value has definitely changed by the time we fire
+		long dueTime = SystemClock.uptimeMillis() + (delayNanos + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI;
+		int idx = listeners.indexOf(listener);
+		if (idx == -1) {
+			idx = listeners.size();
+			listeners.add(listener);
+			if (idx == dueTimes.length) {
+				long[] grown = new long[dueTimes.length * 2];
+				System.arraycopy(dueTimes, 0, grown, 0, idx);
+				dueTimes = grown;
+			}
+		}
+		dueTimes[idx] = dueTime;
+		reschedule();
+	}
+
+	/** Cancels the given listener's pending tick, if any. */
+	public void cancel(OnTickListener listener) {
+		int idx = listeners.indexOf(listener);
+		if (idx != -1) {
+			remove(idx);
+			reschedule();
+		}
+	}
+
+	private void remove(int idx) {
+		int last = listeners.size() - 1;
+		listeners.set(idx, listeners.get(last));
+		dueTimes[idx] = dueTimes[last];
+		listeners.remove(last);
+	}
+
+	private void reschedule() {
+		long earliest = -1;
+		for (int idx = 0; idx < listeners.size(); idx++) {
+			if (earliest == -1 || dueTimes[idx] < earliest) {
+				earliest = dueTimes[idx];
+			}
+		}
+		if (earliest == scheduledTime) {
+			return;
+		}
+		handler.removeCallbacks(tick);
+		scheduledTime = earliest;
+		if (earliest != -1) {
+			handler.postAtTime(tick, earliest);
+		}
+	}
+
+	private final Runnable tick = new Runnable() {
+		@Override
+		public void run() {
+			scheduledTime = -1;
+			long now = SystemClock.uptimeMillis();
+			// take the due listeners out first, since they will reschedule themselves
+			int firingCount = 0;
+			for (int idx = listeners.size() - 1; idx >= 0; idx--) {
+				if (dueTimes[idx] <= now) {
+					if (firingCount == firing.length) {
+						OnTickListener[] grown = new OnTickListener[firing.length * 2];
+						System.arraycopy(firing, 0, grown, 0, firingCount);
+						firing = grown;
+					}
+					firing[firingCount++] = listeners.get(idx);
+					remove(idx);
+				}
+			}
+			reschedule();
+			for (int idx = 0; idx < firingCount; idx++) {
+				OnTickListener listener = firing[idx];
+				firing[idx] = null;
+				listener.onTick();
+			}
+		}
+	};
+}
@@ -16,23 +16,39 @@
 
 package org.dpadgett.widget;
 
+import org.dpadgett.timer.TimeSources;
+
 import android.content.Context;
-import android.graphics.Canvas;
 import android.util.AttributeSet;
 import android.util.TypedValue;
+import android.view.View;
 import android.widget.TextView;
 
 public class TimerTextView extends TextView {
 
-	// the timestamp from which we started timing
+
+	private final DurationFormatter formatter =
+			new DurationFormatter(DurationFormatter.Precision.MILLISECONDS, false);
+
+	// the units last shown, so unchanged text isn't set again
+	private long shownUnits = -1;
+
+	// the timestamp from which we started timing, in elapsed realtime nanoseconds
 	private long startingTime = 0;
 	
 	// whether or not we are paused
 	private boolean isPaused = true;
-	
-	// a prefix to prepend to the timer text
-	private String textPrefix = "";
 
+	// whether the page holding this view is the one being shown
+	private boolean userVisible = true;
+
+	private final Ticker.OnTickListener tickListener = new Ticker.OnTickListener() {
+		@Override
+		public void onTick() {
+			updateTicking();
+		}
+	};
+	
 	public TimerTextView(Context context) {
 		super(context);
 	}
@@ -47,28 +63,50 @@ public class TimerTextView extends TextView {
 
 	public void setStartingTime(long startingTime) {
 		this.startingTime  = startingTime;
+		if (!isPaused) {
+			updateTicking();
+		}
 	}
 	
 	public void pause() {
-		pause(System.currentTimeMillis());
+		pause(TimeSources.get().elapsedRealtimeNanos());
 	}
 	
 	public void pause(long pausingTimestamp) {
 		isPaused = true;
 		setTimerText(pausingTimestamp);
+		updateTicking();
 	}
 	
 	public void resume() {
 		isPaused = false;
+		updateTicking();
 	}
 	
 	public void reset() {
-		startingTime = System.currentTimeMillis();
+		startingTime = TimeSources.get().elapsedRealtimeNanos();
 		setTimerText(startingTime);
 	}
 	
 	public void setTextPrefix(String textPrefix) {
-		this.textPrefix = textPrefix;
+		formatter.setPrefix(textPrefix);
+		shownUnits = -1;
+	}
+
+	public void setPrecision(DurationFormatter.Precision precision) {
+		formatter.setPrecision(precision);
+		shownUnits = -1;
+		updateTicking();
+	}
+
+	/**
+	 * Sets whether the page holding this view is the one being shown.
+	 * ViewPager keeps its neighbouring pages attached and visible, so
+	 * this is the only way we find out nobody can see us.
+	 */
+	public void setUserVisible(boolean userVisible) {
+		this.userVisible = userVisible;
+		updateTicking();
 	}
 	
 	public void forceUpdate(long timestamp) {
@@ -77,20 +115,52 @@ public class TimerTextView extends TextView {
 	
 	private void setTimerText(long timestamp) {
 		long elapsedTime = timestamp - startingTime;
-		setText(textPrefix + getTimerText(elapsedTime));
-		invalidate();
+		long units = formatter.toUnits(elapsedTime);
+		if (units != shownUnits) {
+			shownUnits = units;
+			setText(formatter.getBuffer(), 0, formatter.format(elapsedTime));
+		}
 	}
 
-	private void setTimerText() {
-		setTimerText(System.currentTimeMillis());
+	/**
+	 * Brings the text up to date and asks for a tick when it next changes,
+	 * or stops ticking if the time isn't running or can't be seen.
+	 */
+	private void updateTicking() {
+		if (isPaused || !userVisible || getWindowVisibility() != VISIBLE || !isShown()) {
+			Ticker.get(getContext()).cancel(tickListener);
+			return;
+		}
+		long now = TimeSources.get().elapsedRealtimeNanos();
+		setTimerText(now);
+		long elapsedTime = now - startingTime;
+		long nanosPerUnit = formatter.getPrecision().getNanosPerUnit();
+		long untilChange = elapsedTime < 0 ? -elapsedTime : nanosPerUnit - elapsedTime % nanosPerUnit;
+		Ticker.get(getContext()).schedule(tickListener, untilChange);
 	}
 
 	@Override
-	protected void onDraw(Canvas canvas) {
-		if (!isPaused) {
-			setTimerText();
-		}
-		super.onDraw(canvas);
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		updateTicking();
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		Ticker.get(getContext()).cancel(tickListener);
+	}
+
+	@Override
+	protected void onWindowVisibilityChanged(int visibility) {
+		super.onWindowVisibilityChanged(visibility);
+		updateTicking();
+	}
+
+	@Override
+	protected void onVisibilityChanged(View changedView, int visibility) {
+		super.onVisibilityChanged(changedView, visibility);
+		updateTicking();
 	}
 
 	@Override
@@ -116,15 +186,4 @@ public class TimerTextView extends TextView {
 		}
 		super.onMeasure(widthMeasureSpec, heightMeasureSpec);
 	}
-
-	private static String getTimerText(long elapsedTime) {
-		long millis = elapsedTime % 1000;
-		elapsedTime /= 1000;
-		long secs = elapsedTime % 60;
-		elapsedTime /= 60;
-		long mins = elapsedTime % 60;
-		elapsedTime /= 60;
-		long hours = elapsedTime % 60;
-		return String.format("%02d:%02d:%02d.%03d", hours, mins, secs, millis);
-	}
 }